@@ -0,0 +1,202 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks for the chat data structures and writes the results as
+ * JSON in the same layout as JMH's -rf json output, so runs can be compared
+ * with the usual JMH tooling.
+ * Each benchmark gets warmup iterations (not recorded) followed by measured
+ * iterations, all in this JVM; the error is the 99.9% confidence half-width.
+ *
+ * Usage: java BenchRunner [-wi warmups] [-i iterations] [-t millisPerIteration] [-o results.json] [regex]
+ */
+public class BenchRunner {
+    private static final int DEFAULT_WARMUPS = 2;
+    private static final int DEFAULT_ITERATIONS = 3;
+    private static final long DEFAULT_ITERATION_MS = 1000;
+    private static final String DEFAULT_OUTPUT = "bench-results.json";
+
+    // Two-sided 99.9% Student t quantiles for 1..10 degrees of freedom
+    private static final double[] T_999 = {636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59};
+
+    private static volatile long sink; // Results are folded in here so the JIT can't discard the work
+
+    /**
+     * Keep a benchmark result alive
+     */
+    public static void consume(Object value) {
+        sink += value == null ? 0 : value.hashCode();
+    }
+
+    public static void consume(long value) {
+        sink += value;
+    }
+
+    /**
+     * Scores of one benchmark's measured iterations
+     */
+    static class Result {
+        final Benchmark benchmark;
+        final double[] scores; // ops/s per iteration
+
+        Result(Benchmark benchmark, double[] scores) {
+            this.benchmark = benchmark;
+            this.scores = scores;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double score : scores) {
+                sum += score;
+            }
+            return sum / scores.length;
+        }
+
+        double error() {
+            int n = scores.length;
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double mean = mean();
+            double squares = 0;
+            for (double score : scores) {
+                squares += (score - mean) * (score - mean);
+            }
+            double stdDev = Math.sqrt(squares / (n - 1));
+            double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.29;
+            return t * stdDev / Math.sqrt(n);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int warmups = DEFAULT_WARMUPS;
+        int iterations = DEFAULT_ITERATIONS;
+        long iterationMillis = DEFAULT_ITERATION_MS;
+        String output = DEFAULT_OUTPUT;
+        Pattern filter = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-wi": warmups = Integer.parseInt(args[++i]); break;
+                    case "-i": iterations = Integer.parseInt(args[++i]); break;
+                    case "-t": iterationMillis = Long.parseLong(args[++i]); break;
+                    case "-o": output = args[++i]; break;
+                    default: filter = Pattern.compile(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java BenchRunner [-wi warmups] [-i iterations] [-t millisPerIteration] [-o results.json] [regex]");
+            return;
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.addAll(QueueBenchmarks.all());
+        benchmarks.addAll(MapBenchmarks.all());
+        benchmarks.addAll(SortSearchBenchmarks.all());
+
+        List<Result> results = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks) {
+            if (filter != null && !filter.matcher(benchmark.getLabel()).find()) {
+                continue;
+            }
+            results.add(run(benchmark, warmups, iterations, iterationMillis * 1_000_000));
+        }
+
+        System.out.println();
+        System.out.printf("%-75s %15s %12s%n", "Benchmark", "Score", "Error");
+        for (Result result : results) {
+            System.out.printf("%-75s %15.1f %12.1f  ops/s%n", result.benchmark.getLabel(), result.mean(), result.error());
+        }
+
+        writeJson(results, output, warmups, iterations, iterationMillis);
+        System.out.println("\nResults written to " + output);
+    }
+
+    private static Result run(Benchmark benchmark, int warmups, int iterations, long iterationNanos) throws Exception {
+        System.out.println("# " + benchmark.getLabel());
+        benchmark.setup();
+        try {
+            for (int i = 1; i <= warmups; i++) {
+                System.out.printf("  warmup %d: %.1f ops/s%n", i, iteration(benchmark, iterationNanos));
+            }
+            double[] scores = new double[iterations];
+            for (int i = 0; i < iterations; i++) {
+                scores[i] = iteration(benchmark, iterationNanos);
+                System.out.printf("  iteration %d: %.1f ops/s%n", i + 1, scores[i]);
+            }
+            return new Result(benchmark, scores);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private static double iteration(Benchmark benchmark, long iterationNanos) throws Exception {
+        long start = System.nanoTime();
+        long ops = benchmark.runIteration(iterationNanos);
+        long elapsed = System.nanoTime() - start;
+        return ops * 1e9 / elapsed;
+    }
+
+    /**
+     * Write the results in JMH's JSON result layout
+     */
+    private static void writeJson(List<Result> results, String file, int warmups, int iterations,
+                                  long iterationMillis) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.println("[");
+            for (int r = 0; r < results.size(); r++) {
+                Result result = results.get(r);
+                Benchmark benchmark = result.benchmark;
+                double error = result.error();
+
+                out.println("    {");
+                out.println("        \"benchmark\" : " + quote(benchmark.getName()) + ",");
+                out.println("        \"mode\" : \"thrpt\",");
+                out.println("        \"threads\" : " + benchmark.getThreads() + ",");
+                out.println("        \"forks\" : 0,");
+                out.println("        \"jvm\" : " + quote(System.getProperty("java.home")) + ",");
+                out.println("        \"jdkVersion\" : " + quote(System.getProperty("java.version")) + ",");
+                out.println("        \"warmupIterations\" : " + warmups + ",");
+                out.println("        \"warmupTime\" : \"" + iterationMillis + " ms\",");
+                out.println("        \"measurementIterations\" : " + iterations + ",");
+                out.println("        \"measurementTime\" : \"" + iterationMillis + " ms\",");
+                out.println("        \"params\" : {");
+                int p = 0;
+                for (Map.Entry<String, String> param : benchmark.getParams().entrySet()) {
+                    out.print("            " + quote(param.getKey()) + " : " + quote(param.getValue()));
+                    out.println(++p < benchmark.getParams().size() ? "," : "");
+                }
+                out.println("        },");
+                out.println("        \"primaryMetric\" : {");
+                out.println("            \"score\" : " + number(result.mean()) + ",");
+                out.println("            \"scoreError\" : " + number(error) + ",");
+                out.println("            \"scoreConfidence\" : [ " + number(result.mean() - error) + ", "
+                        + number(result.mean() + error) + " ],");
+                out.println("            \"scoreUnit\" : \"ops/s\",");
+                StringBuilder raw = new StringBuilder();
+                for (int i = 0; i < result.scores.length; i++) {
+                    raw.append(i > 0 ? ", " : "").append(number(result.scores[i]));
+                }
+                out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+                out.println("        },");
+                out.println("        \"secondaryMetrics\" : {}");
+                out.println(r + 1 < results.size() ? "    }," : "    }");
+            }
+            out.println("]");
+        }
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.valueOf(value);
+    }
+}
\ No newline at end of file
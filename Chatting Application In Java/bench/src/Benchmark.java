@@ -0,0 +1,105 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One benchmark with fixed parameters.
+ * The runner calls setup(), then runIteration() for each warmup and measurement
+ * iteration, then tearDown(). The score is operations per second of iteration time.
+ */
+public abstract class Benchmark {
+    private final String name;
+    private final int threads;
+    private final Map<String, String> params;
+
+    /**
+     * Code run by each thread of a concurrent iteration until stop is set.
+     * Returns the number of operations it completed.
+     */
+    protected interface ThreadBody {
+        long run(int threadIndex, AtomicBoolean stop) throws Exception;
+    }
+
+    protected Benchmark(String name, int threads, String... params) {
+        this.name = name;
+        this.threads = threads;
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < params.length; i += 2) {
+            map.put(params[i], params[i + 1]);
+        }
+        this.params = Collections.unmodifiableMap(map);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    /**
+     * Name and parameters, e.g. "MapBenchmarks.mixed size=100 mix=read90"
+     */
+    public String getLabel() {
+        StringBuilder sb = new StringBuilder(name);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            sb.append(' ').append(param.getKey()).append('=').append(param.getValue());
+        }
+        return sb.toString();
+    }
+
+    public void setup() throws Exception {
+    }
+
+    /**
+     * Run for about durationNanos and return the number of operations completed
+     */
+    public abstract long runIteration(long durationNanos) throws Exception;
+
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Run the body on the given number of threads, all starting together,
+     * stop them after durationNanos and return their total operation count
+     */
+    protected static long runConcurrently(int threadCount, long durationNanos, ThreadBody body)
+            throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(threadCount);
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong total = new AtomicLong();
+        Thread[] threads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    total.addAndGet(body.run(index, stop));
+                } catch (Exception e) {
+                    System.err.println("Benchmark thread failed: " + e);
+                }
+            }, "bench-" + i);
+            threads[i].start();
+        }
+
+        ready.await();
+        go.countDown();
+        Thread.sleep(durationNanos / 1_000_000, (int) (durationNanos % 1_000_000));
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return total.get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,390 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator for ChatServer.
+ * Simulates many users speaking the ChatClient protocol over non-blocking
+ * sockets on a few selector threads, sends chat lines at a fixed total rate with
+ * optional join/leave churn, and measures end-to-end delivery latency: every
+ * line carries the time it was scheduled to be sent, and every receiving user
+ * records how long ago that was. Using the scheduled rather than the actual send
+ * time keeps a stalled server from hiding its own latency (coordinated omission).
+ *
+ * Usage: java LoadGenerator [--users N] [--rate msgsPerSec] [--duration sec] [--warmup sec]
+ *                           [--churn perSec] [--ramp connectsPerSec] [--loops N] [--host H] [--port P]
+ */
+public class LoadGenerator {
+    private static final String MARKER = " LT "; // Precedes the scheduled send time in a chat line
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 4096;
+    private static final double SERVER_RATE_LIMIT = 5.0; // ChatServer's default per-client limit
+
+    private String host = "localhost";
+    private int port = 12345;
+    private int users = 200;
+    private double rate = 200;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int churnPerSecond = 0;
+    private int rampPerSecond = 500;
+    private int loopCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    private volatile boolean running;
+    private volatile boolean measuring;
+    private volatile LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder sendsSkipped = new LongAdder(); // Due sends with no logged-in user or a full buffer
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * One simulated user
+     */
+    private class Connection {
+        final String name;
+        final EventLoop loop;
+        SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        boolean loggedIn; // SESSION line received
+
+        Connection(String name, EventLoop loop) {
+            this.name = name;
+            this.loop = loop;
+        }
+
+        /**
+         * Queue a line for sending; false if the socket is backed up
+         */
+        boolean send(String line) throws IOException {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            if (writeBuffer.remaining() < bytes.length) {
+                return false;
+            }
+            writeBuffer.put(bytes);
+            flush();
+            return true;
+        }
+
+        void flush() throws IOException {
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            writeBuffer.compact();
+            int ops = SelectionKey.OP_READ | (writeBuffer.position() > 0 ? SelectionKey.OP_WRITE : 0);
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    /**
+     * Selector thread that owns a share of the users and of the send rate
+     */
+    private class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final int target; // Users this loop keeps connected
+        private final long sendIntervalNanos;
+        private final List<Connection> connections;
+        private int nextSender; // Round-robin position in connections
+        private int generation; // Makes reconnecting users' names unique
+        private long nextSendNanos;
+        private long nextConnectNanos;
+        private long nextChurnNanos;
+
+        EventLoop(int index, int target, double loopRate) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+            this.target = target;
+            this.sendIntervalNanos = loopRate > 0 ? (long) (1e9 / loopRate) : Long.MAX_VALUE;
+            this.connections = new ArrayList<>();
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            nextSendNanos = now;
+            nextConnectNanos = now;
+            nextChurnNanos = now + 1_000_000_000L;
+            long connectIntervalNanos = (long) (1e9 * loopCount / rampPerSecond);
+
+            try {
+                while (running) {
+                    now = System.nanoTime();
+                    long wait = Math.min(nextSendNanos, connections.size() < target ? nextConnectNanos : Long.MAX_VALUE) - now;
+                    if (wait > 1_000_000) {
+                        selector.select(Math.min(wait / 1_000_000, 100));
+                    } else {
+                        selector.selectNow();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+
+                    now = System.nanoTime();
+                    while (connections.size() < target && now >= nextConnectNanos) {
+                        open();
+                        nextConnectNanos += connectIntervalNanos;
+                    }
+                    if (churnPerSecond > 0 && now >= nextChurnNanos) {
+                        churn();
+                        nextChurnNanos += 1_000_000_000L;
+                    }
+                    sendDue(now);
+                }
+            } catch (IOException e) {
+                System.err.println("Event loop " + index + " failed: " + e.getMessage());
+            } finally {
+                for (Connection connection : new ArrayList<>(connections)) {
+                    close(connection, false);
+                }
+            }
+        }
+
+        private void open() throws IOException {
+            Connection connection = new Connection("load" + index + "_" + generation++, this);
+            connection.channel = SocketChannel.open();
+            connection.channel.configureBlocking(false);
+            connection.channel.connect(new InetSocketAddress(host, port));
+            connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            connections.add(connection);
+        }
+
+        private void close(Connection connection, boolean reconnect) {
+            connections.remove(connection);
+            if (connection.loggedIn) {
+                disconnects.increment();
+            }
+            try {
+                connection.key.cancel();
+                connection.channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            if (reconnect) {
+                // Open the replacement right away rather than waiting for the ramp
+                nextConnectNanos = Math.min(nextConnectNanos, System.nanoTime());
+            }
+        }
+
+        /**
+         * Disconnect a few random users; the ramp reconnects them under new names
+         */
+        private void churn() {
+            int count = churnPerSecond / loopCount + (index < churnPerSecond % loopCount ? 1 : 0);
+            for (int i = 0; i < count && !connections.isEmpty(); i++) {
+                Connection victim = connections.get(ThreadLocalRandom.current().nextInt(connections.size()));
+                if (victim.loggedIn) {
+                    try {
+                        victim.send("/quit");
+                    } catch (IOException e) {
+                        // Closing anyway
+                    }
+                }
+                close(victim, true);
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    connection.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                if (key.isWritable()) {
+                    connection.flush();
+                }
+                if (key.isReadable()) {
+                    read(connection);
+                }
+            } catch (IOException e) {
+                close(connection, running);
+            }
+        }
+
+        private void read(Connection connection) throws IOException {
+            ByteBuffer buffer = connection.readBuffer;
+            int n = connection.channel.read(buffer);
+            if (n < 0) {
+                close(connection, running);
+                return;
+            }
+
+            buffer.flip();
+            int lineStart = buffer.position();
+            for (int i = lineStart; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    int end = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] bytes = new byte[end - lineStart];
+                    buffer.get(lineStart, bytes);
+                    onLine(connection, new String(bytes, StandardCharsets.ISO_8859_1));
+                    if (!connection.channel.isOpen()) {
+                        return;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            buffer.position(lineStart);
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                buffer.clear(); // A single line larger than the buffer: drop it
+            }
+        }
+
+        private void onLine(Connection connection, String line) throws IOException {
+            if (line.startsWith("MSG:")) {
+                received.increment();
+                int marker = line.lastIndexOf(MARKER);
+                if (marker >= 0 && measuring) {
+                    try {
+                        long scheduled = Long.parseLong(line.substring(marker + MARKER.length()));
+                        latency.recordSince(scheduled);
+                    } catch (NumberFormatException e) {
+                        // Someone else's chat line
+                    }
+                }
+            } else if (line.startsWith("Enter your username")) {
+                connection.send(connection.name);
+            } else if (line.startsWith("SESSION:")) {
+                connection.loggedIn = true;
+                connects.increment();
+            } else if (line.equals("PING")) {
+                connection.send("PONG");
+            } else if (line.contains("too fast") || line.contains("Server is busy")) {
+                throttled.increment();
+            } else if (line.startsWith("Username already taken")) {
+                rejected.increment();
+                close(connection, running);
+            }
+        }
+
+        /**
+         * Send every message whose scheduled time has come, round robin over logged-in users
+         */
+        private void sendDue(long now) throws IOException {
+            while (nextSendNanos <= now) {
+                long scheduled = nextSendNanos;
+                nextSendNanos += sendIntervalNanos;
+
+                Connection sender = null;
+                for (int tries = 0; tries < connections.size() && sender == null; tries++) {
+                    Connection candidate = connections.get(nextSender++ % connections.size());
+                    if (candidate.loggedIn) {
+                        sender = candidate;
+                    }
+                }
+                if (sender != null && sender.send("hello from " + sender.name + MARKER + scheduled)) {
+                    sent.increment();
+                } else {
+                    sendsSkipped.increment();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--users": generator.users = Integer.parseInt(args[++i]); break;
+                    case "--rate": generator.rate = Double.parseDouble(args[++i]); break;
+                    case "--duration": generator.durationSeconds = Integer.parseInt(args[++i]); break;
+                    case "--warmup": generator.warmupSeconds = Integer.parseInt(args[++i]); break;
+                    case "--churn": generator.churnPerSecond = Integer.parseInt(args[++i]); break;
+                    case "--ramp": generator.rampPerSecond = Integer.parseInt(args[++i]); break;
+                    case "--loops": generator.loopCount = Integer.parseInt(args[++i]); break;
+                    case "--host": generator.host = args[++i]; break;
+                    case "--port": generator.port = Integer.parseInt(args[++i]); break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+            if (generator.users < 1 || generator.rate < 0 || generator.loopCount < 1 || generator.rampPerSecond < 1) {
+                throw new IllegalArgumentException("out of range");
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java LoadGenerator [--users N] [--rate msgsPerSec] [--duration sec] [--warmup sec]");
+            System.err.println("                          [--churn perSec] [--ramp connectsPerSec] [--loops N] [--host H] [--port P]");
+            return;
+        }
+        generator.run();
+    }
+
+    private void run() throws Exception {
+        if (rate / users > SERVER_RATE_LIMIT) {
+            System.err.printf("Warning: %.1f msg/s per user exceeds the server's default limit of %.0f; "
+                    + "expect throttling%n", rate / users, SERVER_RATE_LIMIT);
+        }
+        System.out.printf("Load: %d users, %.0f msg/s, churn %d/s, %d event loops, %ds warmup + %ds%n",
+                users, rate, churnPerSecond, loopCount, warmupSeconds, durationSeconds);
+
+        running = true;
+        EventLoop[] loops = new EventLoop[loopCount];
+        Thread[] threads = new Thread[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            int share = users / loopCount + (i < users % loopCount ? 1 : 0);
+            loops[i] = new EventLoop(i, share, rate / loopCount);
+            threads[i] = new Thread(loops[i], "load-loop-" + i);
+            threads[i].start();
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        latency = new LatencyHistogram();
+        measuring = true;
+        long startNanos = System.nanoTime();
+        long sentAtStart = sent.sum();
+        long receivedAtStart = received.sum();
+        long skippedAtStart = sendsSkipped.sum();
+
+        for (int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(1000);
+            LatencyHistogram current = latency;
+            System.out.printf("t=%3ds connected=%d sent=%d received=%d skipped=%d throttled=%d p50=%.2fms p99=%.2fms%n",
+                    second, connects.sum() - disconnects.sum(), sent.sum() - sentAtStart,
+                    received.sum() - receivedAtStart, sendsSkipped.sum() - skippedAtStart, throttled.sum(),
+                    current.getPercentile(50) / 1e6, current.getPercentile(99) / 1e6);
+        }
+
+        measuring = false;
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+        long totalSent = sent.sum() - sentAtStart;
+        long totalReceived = received.sum() - receivedAtStart;
+        long totalSkipped = sendsSkipped.sum() - skippedAtStart;
+        running = false;
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        LatencyHistogram result = latency;
+        System.out.println();
+        System.out.println("=== Results ===");
+        System.out.printf("sent:        %d (%.1f msg/s)%n", totalSent, totalSent / elapsed);
+        System.out.printf("delivered:   %d (%.1f msg/s across all receivers)%n", totalReceived, totalReceived / elapsed);
+        System.out.printf("skipped:     %d sends with no logged-in user or a backed-up socket%n", totalSkipped);
+        System.out.printf("connections: %d logins, %d disconnects, %d rejected, %d throttle notices%n",
+                connects.sum(), disconnects.sum(), rejected.sum(), throttled.sum());
+        System.out.printf("latency:     p50=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms mean=%.2fms (n=%d)%n",
+                result.getPercentile(50) / 1e6, result.getPercentile(99) / 1e6, result.getPercentile(99.9) / 1e6,
+                result.getMax() / 1e6, result.getMean() / 1e6, result.getCount());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SimpleHashMap get/put/remove mixes at several sizes and thread counts.
+ * Keys are drawn from twice the map size, so about half the lookups hit and
+ * puts and removes keep the size roughly stable. The score is operations per second.
+ * The same mixes over int keys compare IntObjectMap and IntIntMap with a boxed
+ * SimpleHashMap<Integer, Integer>.
+ */
+public class MapBenchmarks {
+    private static final int[] SIZES = {100, 10_000, 100_000};
+    private static final int[] THREADS = {1, 4, 16};
+    private static final int[] INT_KEY_THREADS = {1, 4};
+
+    /**
+     * Operation mix as percentages of get and put; the rest are removes
+     */
+    enum Mix {
+        READ90(90, 5),
+        MIXED50(50, 25);
+
+        final int getPercent;
+        final int putPercent;
+
+        Mix(int getPercent, int putPercent) {
+            this.getPercent = getPercent;
+            this.putPercent = putPercent;
+        }
+    }
+
+    /**
+     * Maps compared on int keys
+     */
+    enum IntMap {
+        BOXED, // SimpleHashMap<Integer, Integer>
+        INT_OBJECT, // IntObjectMap<Integer>
+        INT_INT // IntIntMap
+    }
+
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (int size : SIZES) {
+            for (Mix mix : Mix.values()) {
+                for (int threads : THREADS) {
+                    benchmarks.add(new MixedOperations(size, mix, threads));
+                }
+            }
+        }
+        for (int size : SIZES) {
+            for (Mix mix : Mix.values()) {
+                for (int threads : INT_KEY_THREADS) {
+                    for (IntMap impl : IntMap.values()) {
+                        benchmarks.add(new IntKeyOperations(size, mix, threads, impl));
+                    }
+                }
+            }
+        }
+        return benchmarks;
+    }
+
+    static class MixedOperations extends Benchmark {
+        private final int size;
+        private final Mix mix;
+        private final int threadCount;
+        private SimpleHashMap<String, Integer> map;
+        private String[] keys;
+
+        MixedOperations(int size, Mix mix, int threads) {
+            super("MapBenchmarks.mixedOperations", threads,
+                    "size", String.valueOf(size), "mix", mix.name().toLowerCase(), "threads", String.valueOf(threads));
+            this.size = size;
+            this.mix = mix;
+            this.threadCount = threads;
+        }
+
+        @Override
+        public void setup() {
+            keys = new String[size * 2];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = "user" + i;
+            }
+            map = new SimpleHashMap<>();
+            for (int i = 0; i < size; i++) {
+                map.put(keys[i * 2], i);
+            }
+        }
+
+        @Override
+        public long runIteration(long durationNanos) throws Exception {
+            return runConcurrently(threadCount, durationNanos, (index, stop) -> {
+                long seed = 0x9E3779B97F4A7C15L * (index + 1);
+                long ops = 0;
+                long sink = 0;
+                while (!stop.get()) {
+                    // xorshift: cheaper than a shared Random, so the map dominates the cost
+                    seed ^= seed << 13;
+                    seed ^= seed >>> 7;
+                    seed ^= seed << 17;
+                    String key = keys[(int) ((seed >>> 1) % keys.length)];
+                    int roll = (int) ((seed >>> 40) % 100);
+
+                    if (roll < mix.getPercent) {
+                        Integer value = map.get(key);
+                        sink += value != null ? value : 0;
+                    } else if (roll < mix.getPercent + mix.putPercent) {
+                        map.put(key, (int) ops);
+                    } else {
+                        map.remove(key);
+                    }
+                    ops++;
+                }
+                BenchRunner.consume(sink);
+                return ops;
+            });
+        }
+    }
+
+    /**
+     * Get/put/remove mixes over dense int ids, as used for connection and item ids.
+     * Each map gets its own loop so the JIT sees a single receiver type.
+     */
+    static class IntKeyOperations extends Benchmark {
+        private final int size;
+        private final Mix mix;
+        private final int threadCount;
+        private final IntMap impl;
+        private SimpleHashMap<Integer, Integer> boxed;
+        private IntObjectMap<Integer> intObject;
+        private IntIntMap intInt;
+
+        IntKeyOperations(int size, Mix mix, int threads, IntMap impl) {
+            super("MapBenchmarks.intKeyOperations", threads, "size", String.valueOf(size),
+                    "mix", mix.name().toLowerCase(), "impl", impl.name().toLowerCase(), "threads", String.valueOf(threads));
+            this.size = size;
+            this.mix = mix;
+            this.threadCount = threads;
+            this.impl = impl;
+        }
+
+        @Override
+        public void setup() {
+            boxed = null;
+            intObject = null;
+            intInt = null;
+            switch (impl) {
+                case BOXED: boxed = new SimpleHashMap<>(); break;
+                case INT_OBJECT: intObject = new IntObjectMap<>(); break;
+                case INT_INT: intInt = new IntIntMap(); break;
+            }
+            for (int i = 0; i < size; i++) {
+                switch (impl) {
+                    case BOXED: boxed.put(i * 2, i); break;
+                    case INT_OBJECT: intObject.put(i * 2, i); break;
+                    case INT_INT: intInt.put(i * 2, i); break;
+                }
+            }
+        }
+
+        @Override
+        public long runIteration(long durationNanos) throws Exception {
+            int keyRange = size * 2;
+            int getBelow = mix.getPercent;
+            int putBelow = mix.getPercent + mix.putPercent;
+            return runConcurrently(threadCount, durationNanos, (index, stop) -> {
+                long seed = 0x9E3779B97F4A7C15L * (index + 1);
+                long ops = 0;
+                long sink = 0;
+                switch (impl) {
+                    case BOXED:
+                        while (!stop.get()) {
+                            seed = next(seed);
+                            int key = (int) ((seed >>> 1) % keyRange);
+                            int roll = (int) ((seed >>> 40) % 100);
+                            if (roll < getBelow) {
+                                Integer value = boxed.get(key);
+                                sink += value != null ? value : 0;
+                            } else if (roll < putBelow) {
+                                boxed.put(key, (int) ops);
+                            } else {
+                                boxed.remove(key);
+                            }
+                            ops++;
+                        }
+                        break;
+                    case INT_OBJECT:
+                        while (!stop.get()) {
+                            seed = next(seed);
+                            int key = (int) ((seed >>> 1) % keyRange);
+                            int roll = (int) ((seed >>> 40) % 100);
+                            if (roll < getBelow) {
+                                Integer value = intObject.get(key);
+                                sink += value != null ? value : 0;
+                            } else if (roll < putBelow) {
+                                intObject.put(key, (int) ops);
+                            } else {
+                                intObject.remove(key);
+                            }
+                            ops++;
+                        }
+                        break;
+                    case INT_INT:
+                        while (!stop.get()) {
+                            seed = next(seed);
+                            int key = (int) ((seed >>> 1) % keyRange);
+                            int roll = (int) ((seed >>> 40) % 100);
+                            if (roll < getBelow) {
+                                sink += intInt.get(key, 0);
+                            } else if (roll < putBelow) {
+                                intInt.put(key, (int) ops);
+                            } else {
+                                intInt.remove(key);
+                            }
+                            ops++;
+                        }
+                        break;
+                }
+                BenchRunner.consume(sink);
+                return ops;
+            });
+        }
+
+        /**
+         * xorshift step, as in MixedOperations
+         */
+        private static long next(long seed) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            return seed;
+        }
+    }
+}
\ No newline at end of file
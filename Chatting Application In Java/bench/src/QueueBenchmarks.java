@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MessageQueue hand-off throughput: N producers, one consumer, as in a server shard.
+ * The score is messages dequeued per second.
+ */
+public class QueueBenchmarks {
+    private static final int[] PRODUCERS = {1, 4, 16, 64};
+    private static final int CAPACITY = 1000;
+
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (MessageQueue.OverflowPolicy policy : new MessageQueue.OverflowPolicy[]{
+                MessageQueue.OverflowPolicy.BLOCK, MessageQueue.OverflowPolicy.REJECT}) {
+            for (int producers : PRODUCERS) {
+                benchmarks.add(new EnqueueDequeue(producers, policy));
+            }
+        }
+        return benchmarks;
+    }
+
+    /**
+     * Producers enqueue as fast as they can while a single consumer drains.
+     * With REJECT, producers retry with tryEnqueue() when the queue is full.
+     */
+    static class EnqueueDequeue extends Benchmark {
+        private final int producers;
+        private final MessageQueue.OverflowPolicy policy;
+
+        EnqueueDequeue(int producers, MessageQueue.OverflowPolicy policy) {
+            super("QueueBenchmarks.enqueueDequeue", producers + 1,
+                    "producers", String.valueOf(producers), "policy", policy.name());
+            this.producers = producers;
+            this.policy = policy;
+        }
+
+        @Override
+        public long runIteration(long durationNanos) throws Exception {
+            MessageQueue<Integer> queue = new MessageQueue<>(CAPACITY, policy);
+            CountDownLatch producersDone = new CountDownLatch(producers);
+            long[] consumed = new long[1];
+
+            // The consumer keeps draining until every producer has stopped, so none stay blocked
+            Thread consumer = new Thread(() -> {
+                long count = 0;
+                while (true) {
+                    Integer message = queue.poll(1, TimeUnit.MILLISECONDS);
+                    if (message != null) {
+                        count++;
+                    } else if (producersDone.getCount() == 0 && queue.isEmpty()) {
+                        break;
+                    }
+                }
+                consumed[0] = count;
+            }, "bench-consumer");
+            consumer.start();
+
+            runConcurrently(producers, durationNanos, (index, stop) -> produce(queue, stop, producersDone));
+            consumer.join();
+            return consumed[0];
+        }
+
+        private long produce(MessageQueue<Integer> queue, AtomicBoolean stop, CountDownLatch done) {
+            long sent = 0;
+            Integer message = 42;
+            try {
+                while (!stop.get()) {
+                    if (policy == MessageQueue.OverflowPolicy.BLOCK) {
+                        queue.enqueue(message);
+                        sent++;
+                    } else if (queue.tryEnqueue(message)) {
+                        sent++;
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+            return sent;
+        }
+    }
+}
\ No newline at end of file
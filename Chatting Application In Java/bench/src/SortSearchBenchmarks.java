@@ -0,0 +1,184 @@
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sorting and keyword search over generated chat history that looks like the
+ * server's: "[yyyy-MM-dd HH:mm:ss] user: text" lines with join/leave notices.
+ * Compares MergeSort's linear search with the client's indexed search
+ * (MessageSearchIndex over a CompactHistoryStore). The score is operations per second.
+ */
+public class SortSearchBenchmarks {
+    private static final int[] SIZES = {1_000, 100_000};
+    private static final String COMMON_KEYWORD = "hello"; // In about one line in five
+    private static final String RARE_KEYWORD = "zebra"; // In a handful of lines
+
+    private static final String[] WORDS = {
+            "hi", "hello", "the", "meeting", "is", "at", "ok", "thanks", "see", "you", "later",
+            "can", "someone", "review", "my", "pull", "request", "lunch", "build", "broken",
+            "again", "deploying", "now", "coffee", "anyone", "sounds", "good", "lol", "yes", "no",
+            "server", "restart", "tomorrow", "weekend", "plans", "project", "deadline", "friday"
+    };
+
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (int size : SIZES) {
+            benchmarks.add(new Sort(size));
+            for (String keyword : new String[]{COMMON_KEYWORD, RARE_KEYWORD}) {
+                benchmarks.add(new LinearSearch(size, keyword));
+                benchmarks.add(new IndexedSearch(size, keyword));
+            }
+        }
+        return benchmarks;
+    }
+
+    /**
+     * Deterministic chat history of the given size
+     */
+    static String[] chatLines(int count) {
+        Random random = new Random(count);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        long time = 1_700_000_000_000L;
+        String[] lines = new String[count];
+
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(30_000);
+            String user = "user" + random.nextInt(200);
+            String prefix = "[" + format.format(new Date(time)) + "] ";
+
+            if (random.nextInt(20) == 0) {
+                lines[i] = prefix + user + (random.nextBoolean() ? " has joined the chat." : " has left the chat.");
+                continue;
+            }
+
+            StringBuilder text = new StringBuilder(prefix).append(user).append(": ");
+            int words = 2 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    text.append(' ');
+                }
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (random.nextInt(5000) == 0) {
+                text.append(" zebra");
+            }
+            lines[i] = text.toString();
+        }
+        return lines;
+    }
+
+    static class Sort extends Benchmark {
+        private final int size;
+        private String[] lines;
+
+        Sort(int size) {
+            super("SortSearchBenchmarks.mergeSort", 1, "size", String.valueOf(size));
+            this.size = size;
+        }
+
+        @Override
+        public void setup() {
+            lines = chatLines(size);
+        }
+
+        @Override
+        public long runIteration(long durationNanos) {
+            long deadline = System.nanoTime() + durationNanos;
+            long ops = 0;
+            while (System.nanoTime() < deadline) {
+                String[] sorted = MergeSort.sort(lines.clone());
+                BenchRunner.consume(sorted[sorted.length / 2]);
+                ops++;
+            }
+            return ops;
+        }
+    }
+
+    static class LinearSearch extends Benchmark {
+        private final int size;
+        private final String keyword;
+        private String[] lines;
+
+        LinearSearch(int size, String keyword) {
+            super("SortSearchBenchmarks.linearSearch", 1, "size", String.valueOf(size), "keyword", keyword);
+            this.size = size;
+            this.keyword = keyword;
+        }
+
+        @Override
+        public void setup() {
+            lines = chatLines(size);
+        }
+
+        @Override
+        public long runIteration(long durationNanos) {
+            long deadline = System.nanoTime() + durationNanos;
+            long ops = 0;
+            while (System.nanoTime() < deadline) {
+                BenchRunner.consume(MergeSort.searchMessages(lines, keyword).size());
+                ops++;
+            }
+            return ops;
+        }
+    }
+
+    /**
+     * The client's search: skip blocks whose trigram filter rules the keyword out,
+     * match the rest directly on the stored bytes
+     */
+    static class IndexedSearch extends Benchmark {
+        private final int size;
+        private final String keyword;
+        private CompactHistoryStore store;
+        private MessageSearchIndex index;
+
+        IndexedSearch(int size, String keyword) {
+            super("SortSearchBenchmarks.indexedSearch", 1, "size", String.valueOf(size), "keyword", keyword);
+            this.size = size;
+            this.keyword = keyword;
+        }
+
+        @Override
+        public void setup() {
+            store = new CompactHistoryStore();
+            index = new MessageSearchIndex();
+            for (String line : chatLines(size)) {
+                store.append(line);
+                index.add(line);
+            }
+        }
+
+        @Override
+        public long runIteration(long durationNanos) {
+            long[] mask = MessageSearchIndex.keywordMask(keyword);
+            int blocks = (size + MessageSearchIndex.BLOCK_SIZE - 1) / MessageSearchIndex.BLOCK_SIZE;
+            long deadline = System.nanoTime() + durationNanos;
+            long ops = 0;
+
+            while (System.nanoTime() < deadline) {
+                int matches = 0;
+                for (int block = 0; block < blocks; block++) {
+                    if (!index.mayContain(block, mask)) {
+                        continue;
+                    }
+                    int end = Math.min(size, (block + 1) * MessageSearchIndex.BLOCK_SIZE);
+                    for (int i = block * MessageSearchIndex.BLOCK_SIZE; i < end; i++) {
+                        if (store.contains(i, keyword)) {
+                            matches++;
+                        }
+                    }
+                }
+                BenchRunner.consume(matches);
+                ops++;
+            }
+            return ops;
+        }
+
+        @Override
+        public void tearDown() {
+            store.close();
+        }
+    }
+}
\ No newline at end of file
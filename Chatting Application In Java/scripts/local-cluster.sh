@@ -0,0 +1,56 @@
+#!/bin/sh
+# Run a local ChatServer cluster with consistent-hash routing.
+#
+# Usage: scripts/local-cluster.sh <last> [first]
+#
+# Starts nodes first..last (first defaults to 1). Node i serves clients on port
+# 1200i and talks to its peers on port 1300i; every node lists all nine possible
+# nodes as peers, so nodes can be added later from another terminal and the ring
+# rebalances, e.g.:
+#
+#   scripts/local-cluster.sh 3        # nodes 1-3
+#   scripts/local-cluster.sh 4 4      # later: add node 4, about a quarter of the users move
+#
+# Each node runs in cluster-work/n<i>/ with its own chat history and server.log.
+# Clients can connect to any node: java -cp cluster-work/classes ChatClientGUI localhost 12001
+# Ctrl-C stops the nodes started by this invocation.
+
+set -e
+cd "$(dirname "$0")/.."
+
+LAST=${1:?usage: $0 <last> [first]}
+FIRST=${2:-1}
+MAX_NODES=9
+WORK=cluster-work
+
+if [ "$LAST" -gt "$MAX_NODES" ] || [ "$FIRST" -lt 1 ] || [ "$FIRST" -gt "$LAST" ]; then
+    echo "Nodes must be between 1 and $MAX_NODES" >&2
+    exit 1
+fi
+
+mkdir -p "$WORK/classes"
+javac -d "$WORK/classes" src/*.java
+
+PIDS=""
+trap 'kill $PIDS 2>/dev/null' INT TERM EXIT
+
+i=$FIRST
+while [ "$i" -le "$LAST" ]; do
+    PEERS=""
+    j=1
+    while [ "$j" -le "$MAX_NODES" ]; do
+        if [ "$j" -ne "$i" ]; then
+            PEERS="$PEERS${PEERS:+,}localhost:1300$j"
+        fi
+        j=$((j + 1))
+    done
+
+    mkdir -p "$WORK/n$i"
+    (cd "$WORK/n$i" && exec java -cp ../classes ChatServer --port "1200$i" --node "n$i" \
+        --cluster-port "1300$i" --peers "$PEERS" --ring > server.log 2>&1) &
+    PIDS="$PIDS $!"
+    echo "Node n$i: clients on localhost:1200$i, log in $WORK/n$i/server.log"
+    i=$((i + 1))
+done
+
+wait
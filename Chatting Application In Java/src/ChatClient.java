@@ -1,21 +1,58 @@
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Chat client that handles communication with the server.
  * Manages sending and receiving messages.
+ * Reconnects automatically with jittered exponential backoff when the
+ * connection drops, resuming after the last message sequence number up to
+ * which nothing is missing.
+ * Outgoing messages are queued and written by a dedicated writer thread,
+ * so callers such as the Swing event thread never block on the network.
+ * A clustered server may answer REDIRECT:host:port to send the client to the
+ * node that serves its username; the client reconnects there straight away.
  */
 public class ChatClient {
-    private static final String SERVER_HOST = "localhost";
-    private static final int SERVER_PORT = 12345;
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_PORT = 12345;
+    private static final long BASE_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final int SEND_QUEUE_CAPACITY = 256; // Messages waiting for the writer
+    private static final int FLUSH_THRESHOLD_CHARS = 8192; // Flush early once this much is buffered
+    private static final long DEFAULT_FLUSH_DELAY_MS = 5; // Longest a message waits to be coalesced
+    private static final long QUIT_TIMEOUT_MS = 1000; // How long disconnect() waits for queued sends
+    private static final int MAX_REDIRECTS = 3; // Redirects followed in a row before backing off
+    private static final int MAX_AHEAD = 1024; // Messages held past a gap before the gap is given up on
 
+    private final String seedHost; // Address the client was created with
+    private final int seedPort;
+    private volatile String host; // Current server, which a redirect may change
+    private volatile int port;
+    private int redirectCount; // Redirects since the last successful login
     private Socket socket;
-    private PrintWriter out;
+    private volatile MessageWriter writer;
     private BufferedReader in;
     private String username;
-    private boolean connected;
+    private volatile boolean connected;
     private MessageListener messageListener;
 
+    private volatile boolean userDisconnected; // Set by disconnect(); stops reconnecting
+    private volatile boolean autoReconnect;
+    private volatile long lastSequence; // Every message up to this sequence number has been received
+    private final TreeSet<Long> ahead = new TreeSet<>(); // Received past a gap in lastSequence
+    private final TreeSet<Long> resent = new TreeSet<>(); // Received before a resume that will replay them again
+    private volatile String serverEpoch; // Server run the sequence numbers belong to
+    private volatile String sessionToken; // Lets a reconnect take over a half-open session
+    private Thread reconnectThread;
+    private int connectionId; // Identifies the current connection's receiver
+    private volatile long maxFlushDelayNanos;
+
     /**
      * Interface for receiving messages
      */
@@ -23,10 +60,27 @@ public class ChatClient {
         void onMessageReceived(String message);
         void onUserListReceived(String[] users);
         void onConnectionStatusChanged(boolean connected);
+
+        /**
+         * Called before each automatic reconnect attempt
+         */
+        default void onReconnecting(int attempt, long delayMillis) {
+        }
     }
 
     public ChatClient() {
+        this(DEFAULT_HOST, DEFAULT_PORT);
+    }
+
+    public ChatClient(String host, int port) {
+        this.seedHost = host;
+        this.seedPort = port;
+        this.host = host;
+        this.port = port;
         connected = false;
+        autoReconnect = true;
+        lastSequence = -1;
+        maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FLUSH_DELAY_MS);
     }
 
     /**
@@ -37,22 +91,120 @@ public class ChatClient {
     }
 
     /**
-     * Connect to the server
+     * Enable or disable automatic reconnection (enabled by default)
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * Set how long the writer waits for more messages before flushing a batch.
+     * Zero flushes as soon as the send queue is empty.
+     */
+    public void setMaxFlushDelay(long millis) {
+        this.maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+    }
+
+    /**
+     * Connect to the server as a new session
      */
     public boolean connect(String username) {
+        stopReconnecting();
+        userDisconnected = false;
+        this.username = username;
+        host = seedHost;
+        port = seedPort;
+        redirectCount = 0;
+        resetSequence();
+        serverEpoch = null;
+        sessionToken = null;
+
+        if (openConnection(false)) {
+            return true;
+        }
+        if (messageListener != null) {
+            messageListener.onConnectionStatusChanged(false);
+        }
+        return false;
+    }
+
+    /**
+     * Forget the messages received, for a new session or server run
+     */
+    private void resetSequence() {
+        synchronized (ahead) {
+            lastSequence = -1;
+            ahead.clear();
+            resent.clear();
+        }
+    }
+
+    /**
+     * Where a resume should replay from: the first gap. The messages already
+     * received past it will come again and are dropped as they do.
+     */
+    private long resumeFrom() {
+        synchronized (ahead) {
+            resent.clear();
+            resent.addAll(ahead);
+            return lastSequence;
+        }
+    }
+
+    /**
+     * Record a sequenced message. Shards deliver out of order, so lastSequence
+     * only advances over messages received with no gap before them, and those
+     * past a gap are held in ahead until it fills. A resume replays from the
+     * first gap (resumeFrom); messages it repeats are reported as duplicates (false).
+     * The first message of a session sets where counting starts, and a gap
+     * that stays open for MAX_AHEAD messages is given up on.
+     */
+    private boolean received(long sequence) {
+        synchronized (ahead) {
+            if (resent.remove(sequence)) {
+                return false;
+            }
+            if (lastSequence < 0) {
+                lastSequence = sequence - 1;
+            }
+            if (sequence <= lastSequence) {
+                return true; // Numbered before the session's first message, delivered later by a slower shard
+            }
+            if (!ahead.add(sequence)) {
+                return false;
+            }
+            if (ahead.size() > MAX_AHEAD) {
+                lastSequence = ahead.first() - 1;
+            }
+            while (!ahead.isEmpty() && ahead.first() == lastSequence + 1) {
+                lastSequence = ahead.pollFirst();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Open a socket and log in, either as a new session or resuming the previous one
+     */
+    private synchronized boolean openConnection(boolean resume) {
         try {
-            socket = new Socket(SERVER_HOST, SERVER_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true); // The writer already coalesces small messages
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
-            this.username = username;
-
             // Read welcome message
             String welcome = in.readLine();
             System.out.println(welcome);
 
-            // Send username
-            out.println(username);
+            writer = new MessageWriter(socket);
+            writer.start();
+
+            // Send username, with the resume point when reconnecting
+            if (resume && sessionToken != null) {
+                writer.submit(new PendingSend("RESUME " + serverEpoch + " " + resumeFrom() + " " + sessionToken + " " + username));
+            } else {
+                writer.submit(new PendingSend(username));
+            }
 
             connected = true;
 
@@ -64,30 +216,85 @@ public class ChatClient {
             // Start listening for messages
             // The server will either send "Username already taken" and disconnect,
             // or start sending chat messages. The MessageReceiver will handle both cases.
-            new Thread(new MessageReceiver()).start();
+            new Thread(new MessageReceiver(++connectionId, in, writer)).start();
 
             return true;
         } catch (IOException e) {
             System.err.println("Error connecting to server: " + e.getMessage());
             connected = false;
-            if (messageListener != null) {
-                messageListener.onConnectionStatusChanged(false);
-            }
             return false;
         }
     }
 
+    /**
+     * Retry the connection in the background until it succeeds or disconnect() is called.
+     * Delays grow exponentially with full jitter so that clients of a restarted
+     * server don't all reconnect at the same moment.
+     */
+    private synchronized void startReconnecting() {
+        if (reconnectThread != null && reconnectThread.isAlive()) {
+            return;
+        }
+
+        reconnectThread = new Thread(() -> {
+            for (int attempt = 1; !userDisconnected; attempt++) {
+                long delay = backoffDelay(attempt);
+                if (messageListener != null) {
+                    messageListener.onReconnecting(attempt, delay);
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (userDisconnected || Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                if (attempt > 1) {
+                    // The node we were redirected to may be gone; the seed will redirect us again
+                    host = seedHost;
+                    port = seedPort;
+                }
+                if (openConnection(true)) {
+                    return;
+                }
+            }
+        }, "ChatClient-Reconnect");
+        reconnectThread.setDaemon(true);
+        reconnectThread.start();
+    }
+
+    private synchronized void stopReconnecting() {
+        if (reconnectThread != null) {
+            reconnectThread.interrupt();
+            reconnectThread = null;
+        }
+    }
+
+    /**
+     * Random delay between 0 and min(MAX, BASE * 2^(attempt - 1))
+     */
+    private static long backoffDelay(int attempt) {
+        long ceiling = BASE_BACKOFF_MS << Math.min(attempt - 1, 20);
+        return ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF_MS, ceiling) + 1);
+    }
+
     /**
      * Disconnect from the server
      */
     public void disconnect() {
+        userDisconnected = true;
+        stopReconnecting();
         connected = false;
 
+        // Let the writer send what is already queued, then say goodbye
+        MessageWriter current = writer;
+        if (current != null) {
+            current.submit(new PendingSend("/quit"));
+            current.finish(QUIT_TIMEOUT_MS);
+        }
+
         try {
-            if (out != null) {
-                out.println("/quit");
-                out.close();
-            }
             if (in != null) {
                 in.close();
             }
@@ -104,12 +311,27 @@ public class ChatClient {
     }
 
     /**
-     * Send a message to the server
+     * Send a message to the server without waiting for the result
      */
     public void sendMessage(String message) {
-        if (connected && out != null) {
-            out.println(message);
+        send(message);
+    }
+
+    /**
+     * Queue a message for the writer thread. Never blocks.
+     * The future completes once the message has been written to the socket, or
+     * completes exceptionally if not connected, the send queue is full or the
+     * connection is lost before it goes out.
+     */
+    public CompletableFuture<Void> send(String message) {
+        PendingSend send = new PendingSend(message);
+        MessageWriter current = writer;
+        if (!connected || current == null) {
+            send.future.completeExceptionally(new IOException("Not connected"));
+        } else {
+            current.submit(send);
         }
+        return send.future;
     }
 
     /**
@@ -126,22 +348,212 @@ public class ChatClient {
         return username;
     }
 
+    /**
+     * A queued outgoing message and the future reporting its result
+     */
+    private static class PendingSend {
+        final String text;
+        final CompletableFuture<Void> future;
+
+        PendingSend(String text) {
+            this.text = text;
+            this.future = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * Writer thread that owns a connection's output stream.
+     * Like Nagle's algorithm, the writer keeps collecting messages for up to the
+     * max flush delay after the first one (or until FLUSH_THRESHOLD_CHARS are
+     * buffered) and then flushes them together, so bursts go out in few packets.
+     */
+    private class MessageWriter implements Runnable {
+        private final Socket socket;
+        private final MessageQueue<PendingSend> queue;
+        private final List<PendingSend> batch; // Written but not yet flushed
+        private Thread thread;
+        private boolean closed; // No more sends accepted
+
+        // Queued by finish() to stop the writer after everything before it
+        private final PendingSend stop = new PendingSend(null);
+
+        MessageWriter(Socket socket) {
+            this.socket = socket;
+            this.queue = new MessageQueue<>(SEND_QUEUE_CAPACITY, MessageQueue.OverflowPolicy.REJECT);
+            this.batch = new ArrayList<>();
+        }
+
+        void start() {
+            thread = new Thread(this, "ChatClient-Writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Queue a message, failing its future right away if the writer can't take it
+         */
+        synchronized void submit(PendingSend send) {
+            if (closed) {
+                send.future.completeExceptionally(new IOException("Connection closed"));
+            } else if (!queue.tryEnqueue(send)) {
+                send.future.completeExceptionally(new IOException("Send queue is full"));
+            }
+        }
+
+        /**
+         * Stop after writing everything queued so far, waiting up to the timeout
+         */
+        void finish(long timeoutMillis) {
+            boolean queued;
+            synchronized (this) {
+                queued = !closed && queue.tryEnqueue(stop);
+            }
+            if (!queued) {
+                thread.interrupt();
+            }
+            try {
+                thread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread.interrupt();
+        }
+
+        /**
+         * Stop now, failing anything still queued
+         */
+        void abort() {
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            IOException failure = null;
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()), FLUSH_THRESHOLD_CHARS * 2);
+                boolean stopping = false;
+                while (!stopping && !Thread.currentThread().isInterrupted()) {
+                    PendingSend next = queue.dequeue();
+                    long deadline = System.nanoTime() + maxFlushDelayNanos;
+                    int buffered = 0;
+                    while (next != null && next != stop) {
+                        out.write(next.text);
+                        out.write('\n');
+                        batch.add(next);
+                        buffered += next.text.length() + 1;
+                        if (buffered >= FLUSH_THRESHOLD_CHARS) {
+                            break;
+                        }
+                        next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    }
+                    stopping = next == stop;
+
+                    if (!batch.isEmpty()) {
+                        out.flush();
+                        for (PendingSend sent : batch) {
+                            sent.future.complete(null);
+                        }
+                        batch.clear();
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+                if (connected) {
+                    System.err.println("Error sending message: " + e.getMessage());
+                }
+            } finally {
+                synchronized (this) {
+                    closed = true;
+                }
+                IOException reason = failure != null ? failure : new IOException("Connection closed");
+                for (PendingSend unsent : batch) {
+                    unsent.future.completeExceptionally(reason);
+                }
+                for (PendingSend unsent : queue.toList()) {
+                    unsent.future.completeExceptionally(reason);
+                }
+                queue.clear();
+
+                if (failure != null) {
+                    // Let the receiver notice the broken connection and reconnect
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        System.err.println("Error closing socket: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Message receiver thread
      */
     private class MessageReceiver implements Runnable {
+        private final int id;
+        private final BufferedReader reader;
+        private final MessageWriter writer;
+        private boolean rejected;
+        private boolean redirected;
+
+        MessageReceiver(int id, BufferedReader reader, MessageWriter writer) {
+            this.id = id;
+            this.reader = reader;
+            this.writer = writer;
+        }
+
         @Override
         public void run() {
             try {
                 String message;
-                while (connected && (message = in.readLine()) != null) {
+                while (connected && (message = reader.readLine()) != null) {
                     // Check if username was rejected
-                    if (message.contains("already taken")) {
+                    if (message.startsWith("Username already taken")) {
                         System.err.println("Username rejected: " + message);
+                        rejected = true;
                         connected = false;
                         break;
                     }
 
+                    // Another node serves this username: reconnect there
+                    if (message.startsWith("REDIRECT:")) {
+                        String address = message.substring("REDIRECT:".length());
+                        int colon = address.lastIndexOf(':');
+                        host = address.substring(0, colon);
+                        port = Integer.parseInt(address.substring(colon + 1));
+                        System.out.println("Redirected to " + address);
+                        redirected = true;
+                        break;
+                    }
+
+                    // Server heartbeat: answer so the connection isn't reaped as idle
+                    if (message.equals("PING")) {
+                        writer.submit(new PendingSend("PONG"));
+                        continue;
+                    }
+
+                    // Session details for resuming after a reconnect
+                    if (message.startsWith("SESSION:")) {
+                        String[] parts = message.split(":", 3);
+                        if (!parts[1].equals(serverEpoch)) {
+                            // New server run: old sequence numbers no longer apply
+                            serverEpoch = parts[1];
+                            resetSequence();
+                        }
+                        sessionToken = parts[2];
+                        redirectCount = 0;
+                        continue;
+                    }
+
+                    // Sequenced chat message: remember how far we've read, and drop replayed duplicates
+                    if (message.startsWith("MSG:")) {
+                        int end = message.indexOf(':', 4);
+                        if (!received(Long.parseLong(message.substring(4, end)))) {
+                            continue;
+                        }
+                        message = message.substring(end + 1);
+                    }
+
                     // Check if it's a user list update
                     if (message.startsWith("USERLIST:")) {
                         String userListStr = message.substring(9);
@@ -157,16 +569,38 @@ public class ChatClient {
                         }
                     }
                 }
-            } catch (IOException e) {
+            } catch (IOException | RuntimeException e) {
                 if (connected) {
                     System.err.println("Error receiving message: " + e.getMessage());
                 }
             } finally {
+                connectionLost();
+            }
+        }
+
+        /**
+         * Report the drop and start reconnecting, unless a newer connection has replaced this one
+         */
+        private void connectionLost() {
+            writer.abort();
+            synchronized (ChatClient.this) {
+                if (id != connectionId) {
+                    return;
+                }
                 connected = false;
-                if (messageListener != null) {
-                    messageListener.onConnectionStatusChanged(false);
+            }
+            if (redirected && !userDisconnected && ++redirectCount <= MAX_REDIRECTS) {
+                // Follow the redirect without a backoff delay; it is not a failure
+                if (openConnection(sessionToken != null)) {
+                    return;
                 }
             }
+            if (messageListener != null) {
+                messageListener.onConnectionStatusChanged(false);
+            }
+            if ((autoReconnect || redirected) && !userDisconnected && !rejected && sessionToken != null) {
+                startReconnecting();
+            }
         }
     }
 
@@ -191,6 +625,11 @@ public class ChatClient {
             public void onConnectionStatusChanged(boolean connected) {
                 System.out.println("Connection status: " + (connected ? "Connected" : "Disconnected"));
             }
+
+            @Override
+            public void onReconnecting(int attempt, long delayMillis) {
+                System.out.println("Reconnecting in " + delayMillis + " ms (attempt " + attempt + ")");
+            }
         });
 
         BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
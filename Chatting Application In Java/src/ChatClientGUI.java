@@ -1,9 +1,13 @@
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * GUI for the chat client using Swing.
@@ -14,8 +18,11 @@ import java.util.List;
  * - Send messages
  */
 public class ChatClientGUI extends JFrame {
+    private static final int FLUSH_INTERVAL_MS = 16; // At most one UI update per frame
+
     private ChatClient client;
-    private JTextArea messageArea;
+    private JList<String> messageList;
+    private MessageListModel messageListModel;
     private JTextField messageField;
     private JButton sendButton;
     private JButton connectButton;
@@ -26,12 +33,25 @@ public class ChatClientGUI extends JFrame {
     private JTextField searchField;
     private JButton searchButton;
     private JComboBox<String> searchTypeCombo;
-    private List<String> chatHistory;
+    private ConcurrentLinkedQueue<String> pendingMessages;
+    private AtomicBoolean flushScheduled;
+    private Timer flushTimer;
+    private SwingWorker<Integer, String> searchWorker;
+    private JDialog searchDialog;
+    private JLabel searchStatusLabel;
+    private JTextArea searchResultArea;
 
     public ChatClientGUI() {
-        chatHistory = new ArrayList<>();
+        this(new ChatClient());
+    }
+
+    public ChatClientGUI(ChatClient client) {
+        pendingMessages = new ConcurrentLinkedQueue<>();
+        flushScheduled = new AtomicBoolean(false);
+        flushTimer = new Timer(FLUSH_INTERVAL_MS, e -> flushPendingMessages());
+        flushTimer.setRepeats(false);
         initializeUI();
-        client = new ChatClient();
+        this.client = client;
         setupClientListener();
     }
 
@@ -77,12 +97,25 @@ public class ChatClientGUI extends JFrame {
         JPanel centerPanel = new JPanel(new BorderLayout(10, 0));
 
         // Message area
-        messageArea = new JTextArea();
-        messageArea.setEditable(false);
-        messageArea.setLineWrap(true);
-        messageArea.setWrapStyleWord(true);
-        messageArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        JScrollPane messageScrollPane = new JScrollPane(messageArea);
+        // Message list - only the visible rows are decoded and rendered
+        messageListModel = new MessageListModel();
+        messageList = new JList<String>(messageListModel) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true; // Clip long lines to the view instead of measuring every row
+            }
+
+            @Override
+            public String getToolTipText(MouseEvent e) {
+                int index = locationToIndex(e.getPoint());
+                return index >= 0 ? messageListModel.getElementAt(index) : null;
+            }
+        };
+        messageList.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        // Fixed cell sizes stop the list from measuring every message on each change
+        messageList.setFixedCellHeight(messageList.getFontMetrics(messageList.getFont()).getHeight() + 2);
+        messageList.setFixedCellWidth(1);
+        JScrollPane messageScrollPane = new JScrollPane(messageList);
         messageScrollPane.setBorder(BorderFactory.createTitledBorder("Messages"));
 
         // User list
@@ -121,14 +154,32 @@ public class ChatClientGUI extends JFrame {
         messageField.addActionListener(e -> sendMessage());
         usernameField.addActionListener(e -> connectToServer());
         searchField.addActionListener(e -> performSearch());
+        // A running search is stale as soon as the query changes
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                cancelSearch();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                cancelSearch();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                cancelSearch();
+            }
+        });
 
         // Window closing event
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                if (client != null && client.isConnected()) {
-                    client.disconnect();
+                if (client != null) {
+                    client.disconnect(); // Also stops any reconnect in progress
                 }
+                messageListModel.close();
             }
         });
     }
@@ -140,11 +191,11 @@ public class ChatClientGUI extends JFrame {
         client.setMessageListener(new ChatClient.MessageListener() {
             @Override
             public void onMessageReceived(String message) {
-                SwingUtilities.invokeLater(() -> {
-                    messageArea.append(message + "\n");
-                    messageArea.setCaretPosition(messageArea.getDocument().getLength());
-                    chatHistory.add(message);
-                });
+                // Buffer and let one timer-driven flush per frame update the UI
+                pendingMessages.add(message);
+                if (flushScheduled.compareAndSet(false, true)) {
+                    SwingUtilities.invokeLater(() -> flushTimer.restart());
+                }
             }
 
             @Override
@@ -167,9 +218,51 @@ public class ChatClientGUI extends JFrame {
                     updateConnectionStatus(connected);
                 });
             }
+
+            @Override
+            public void onReconnecting(int attempt, long delayMillis) {
+                SwingUtilities.invokeLater(() -> {
+                    appendMessages(List.of("Connection lost. Reconnecting in "
+                            + (delayMillis + 999) / 1000 + "s (attempt " + attempt + ")..."));
+                    // Keep Disconnect available so the user can stop retrying
+                    connectButton.setEnabled(false);
+                    disconnectButton.setEnabled(true);
+                });
+            }
         });
     }
 
+    /**
+     * Add every buffered message to the message list in a single update (runs on the EDT)
+     */
+    private void flushPendingMessages() {
+        // Reset before draining so messages arriving during the flush schedule the next one
+        flushScheduled.set(false);
+
+        List<String> batch = new ArrayList<>();
+        String message;
+        while ((message = pendingMessages.poll()) != null) {
+            batch.add(message);
+        }
+        appendMessages(batch);
+    }
+
+    /**
+     * Add messages to the list, following the newest one unless the user has scrolled up
+     */
+    private void appendMessages(List<String> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        int lastVisible = messageList.getLastVisibleIndex();
+        boolean atBottom = lastVisible < 0 || lastVisible >= messageListModel.getSize() - 1;
+        messageListModel.addAll(messages);
+        if (atBottom) {
+            messageList.ensureIndexIsVisible(messageListModel.getSize() - 1);
+        }
+    }
+
     /**
      * Connect to server
      */
@@ -189,8 +282,8 @@ public class ChatClientGUI extends JFrame {
 
             SwingUtilities.invokeLater(() -> {
                 if (success) {
-                    messageArea.append("Connected to server as " + username + "\n");
-                    messageArea.append("Type your messages below. Enjoy chatting!\n\n");
+                    appendMessages(List.of("Connected to server as " + username,
+                            "Type your messages below. Enjoy chatting!", ""));
                 } else {
                     JOptionPane.showMessageDialog(this,
                             "Failed to connect. Username may be taken or server unavailable.",
@@ -208,7 +301,7 @@ public class ChatClientGUI extends JFrame {
      */
     private void disconnectFromServer() {
         client.disconnect();
-        messageArea.append("\nDisconnected from server.\n");
+        appendMessages(List.of("", "Disconnected from server."));
     }
 
     /**
@@ -233,7 +326,13 @@ public class ChatClientGUI extends JFrame {
         String message = messageField.getText().trim();
 
         if (!message.isEmpty() && client.isConnected()) {
-            client.sendMessage(message);
+            // Queued for the client's writer thread; the EDT never waits on the network
+            client.send(message).whenComplete((sent, error) -> {
+                if (error != null) {
+                    SwingUtilities.invokeLater(() ->
+                            appendMessages(List.of("Message not sent: " + error.getMessage())));
+                }
+            });
             messageField.setText("");
         }
     }
@@ -259,32 +358,116 @@ public class ChatClientGUI extends JFrame {
     }
 
     /**
-     * Search messages using MergeSort search functionality
+     * Search messages in the background, streaming matches into the result dialog.
+     * The search index skips blocks of messages that cannot contain the keyword.
      */
     private void searchMessages(String keyword) {
-        String[] messages = chatHistory.toArray(new String[0]);
-        List<String> results = MergeSort.searchMessages(messages, keyword);
+        cancelSearch();
+        showSearchDialog();
+        searchStatusLabel.setText("Searching for: " + keyword);
 
-        if (results.isEmpty()) {
-            JOptionPane.showMessageDialog(this,
-                    "No messages found containing: " + keyword,
-                    "Search Results",
-                    JOptionPane.INFORMATION_MESSAGE);
-        } else {
-            StringBuilder resultText = new StringBuilder("Found " + results.size() + " message(s):\n\n");
-            for (String result : results) {
-                resultText.append(result).append("\n");
+        CompactHistoryStore store = messageListModel.getStore();
+        MessageSearchIndex index = messageListModel.getSearchIndex();
+        int count = messageListModel.getSize(); // Messages arriving later are not searched
+
+        searchWorker = new SwingWorker<Integer, String>() {
+            private int shown;
+
+            @Override
+            protected Integer doInBackground() {
+                long[] mask = MessageSearchIndex.keywordMask(keyword);
+                int found = 0;
+                for (int start = 0; start < count; start += MessageSearchIndex.BLOCK_SIZE) {
+                    if (isCancelled()) {
+                        break;
+                    }
+                    if (!index.mayContain(start / MessageSearchIndex.BLOCK_SIZE, mask)) {
+                        continue;
+                    }
+
+                    int end = Math.min(start + MessageSearchIndex.BLOCK_SIZE, count);
+                    for (int i = start; i < end; i++) {
+                        if (store.contains(i, keyword)) {
+                            publish(store.get(i));
+                            found++;
+                        }
+                    }
+                }
+                return found;
             }
 
-            JTextArea textArea = new JTextArea(resultText.toString());
-            textArea.setEditable(false);
-            textArea.setLineWrap(true);
-            textArea.setWrapStyleWord(true);
-            JScrollPane scrollPane = new JScrollPane(textArea);
+            @Override
+            protected void process(List<String> results) {
+                if (isCancelled()) {
+                    return;
+                }
+                StringBuilder text = new StringBuilder();
+                for (String result : results) {
+                    text.append(result).append('\n');
+                }
+                searchResultArea.append(text.toString());
+                shown += results.size();
+                searchStatusLabel.setText("Searching for: " + keyword + " (" + shown + " found so far)");
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    int found = get();
+                    searchStatusLabel.setText(found == 0
+                            ? "No messages found containing: " + keyword
+                            : "Found " + found + " message(s) containing: " + keyword);
+                } catch (Exception e) {
+                    searchStatusLabel.setText("Search failed: " + e.getMessage());
+                }
+            }
+        };
+        searchWorker.execute();
+    }
+
+    /**
+     * Stop the running message search, if any
+     */
+    private void cancelSearch() {
+        if (searchWorker != null && !searchWorker.isDone()) {
+            searchWorker.cancel(true);
+            searchStatusLabel.setText("Search cancelled.");
+        }
+        searchWorker = null;
+    }
+
+    /**
+     * Show the (non-modal) search result dialog, cleared for a new search
+     */
+    private void showSearchDialog() {
+        if (searchDialog == null) {
+            searchDialog = new JDialog(this, "Search Results", false);
+            searchStatusLabel = new JLabel(" ");
+            searchStatusLabel.setBorder(new EmptyBorder(5, 5, 5, 5));
+            searchResultArea = new JTextArea();
+            searchResultArea.setEditable(false);
+            searchResultArea.setLineWrap(true);
+            searchResultArea.setWrapStyleWord(true);
+            JScrollPane scrollPane = new JScrollPane(searchResultArea);
             scrollPane.setPreferredSize(new Dimension(500, 300));
 
-            JOptionPane.showMessageDialog(this, scrollPane, "Search Results", JOptionPane.INFORMATION_MESSAGE);
+            searchDialog.add(searchStatusLabel, BorderLayout.NORTH);
+            searchDialog.add(scrollPane, BorderLayout.CENTER);
+            searchDialog.pack();
+            searchDialog.setLocationRelativeTo(this);
+            searchDialog.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    cancelSearch();
+                }
+            });
         }
+
+        searchResultArea.setText("");
+        searchDialog.setVisible(true);
     }
 
     /**
@@ -310,7 +493,8 @@ public class ChatClientGUI extends JFrame {
     }
 
     /**
-     * Main method to start the GUI
+     * Main method to start the GUI.
+     * Usage: java ChatClientGUI [host] [port]
      */
     public static void main(String[] args) {
         // Set look and feel
@@ -321,7 +505,9 @@ public class ChatClientGUI extends JFrame {
         }
 
         SwingUtilities.invokeLater(() -> {
-            ChatClientGUI gui = new ChatClientGUI();
+            ChatClientGUI gui = args.length > 0
+                    ? new ChatClientGUI(new ChatClient(args[0], args.length > 1 ? Integer.parseInt(args[1]) : ChatClient.DEFAULT_PORT))
+                    : new ChatClientGUI();
             gui.setVisible(true);
         });
     }
@@ -0,0 +1,109 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for a chat message's trip through the server.
+ * They cost next to nothing unless a recording has them enabled, e.g.
+ * java -XX:StartFlightRecording=filename=chat.jfr ChatServer
+ * and can then be viewed in JDK Mission Control or with "jfr print --categories Chat".
+ * Sequence numbers are assigned when a message is dequeued, so the events
+ * before that carry the sender only.
+ */
+public final class ChatEvents {
+    private ChatEvents() {
+    }
+
+    @Name("chat.MessageReceived")
+    @Label("Message Received")
+    @Category("Chat")
+    @Description("A line was read from a client")
+    @StackTrace(false)
+    public static class MessageReceived extends Event {
+        @Label("Sender")
+        String sender;
+
+        @Label("Length")
+        @Description("Characters in the line")
+        int length;
+    }
+
+    @Name("chat.MessageEnqueued")
+    @Label("Message Enqueued")
+    @Category("Chat")
+    @Description("A message was offered to a shard queue; the duration is time spent in the enqueue call")
+    @StackTrace(false)
+    public static class MessageEnqueued extends Event {
+        @Label("Sender")
+        String sender;
+
+        @Label("Shard")
+        int shard;
+
+        @Label("Lane")
+        String lane;
+
+        @Label("Accepted")
+        @Description("False if the message was shed, dropped or rejected")
+        boolean accepted;
+    }
+
+    @Name("chat.MessageDequeued")
+    @Label("Message Dequeued")
+    @Category("Chat")
+    @Description("A shard worker took a message from its queue")
+    @StackTrace(false)
+    public static class MessageDequeued extends Event {
+        @Label("Sequence")
+        long sequence;
+
+        @Label("Sender")
+        String sender;
+
+        @Label("Shard")
+        int shard;
+
+        @Label("Queue Time")
+        @Description("Time from the message being created to it being dequeued")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueTime;
+    }
+
+    @Name("chat.BroadcastCompleted")
+    @Label("Broadcast Completed")
+    @Category("Chat")
+    @Description("A message was written to every connected client; the duration is the fan-out")
+    @StackTrace(false)
+    public static class BroadcastCompleted extends Event {
+        @Label("Sequence")
+        long sequence;
+
+        @Label("Sender")
+        String sender;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("End-to-End Latency")
+        @Description("Time from the message being created to the last recipient being written")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("chat.MessagePersisted")
+    @Label("Message Persisted")
+    @Category("Chat")
+    @Description("A message was appended to the chat history; the duration is the write")
+    @StackTrace(false)
+    public static class MessagePersisted extends Event {
+        @Label("Sequence")
+        long sequence;
+
+        @Label("Sender")
+        String sender;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,134 @@
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A message travelling through the server's processing pipeline.
+ * Chat lines and notices carry a sequence number so that clients can
+ * resume after a reconnect and receive only the messages they missed.
+ */
+public class ChatMessage {
+    /**
+     * Kind of queue entry
+     */
+    public enum Type {
+        CHAT,            // Line typed by a user
+        NOTICE,          // Server notice such as a join or leave
+        USERLIST_REFRESH // Marker asking the processor to send the current user list
+    }
+
+    private static final String WIRE_PREFIX = "MSG:";
+    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); // Guarded by itself
+
+    private long sequence; // -1 until the message is logged
+    private final long timestamp; // Epoch milliseconds
+    private final String sender;
+    private final int senderId; // Sender's id on this server (see UsernameTable), 0 if none or remote
+    private final String text; // As typed, without the timestamp or "sender: " prefix
+    private final Type type;
+    private final long createdNanos; // System.nanoTime() when created, for latency metrics
+    private final String origin; // Cluster node the message was relayed from, null if it arose here
+    private String formatted; // Display line, built on first use
+    private String wireLine; // Built on first use and shared by every recipient's outbound queue
+
+    public ChatMessage(long timestamp, String sender, String text, Type type) {
+        this(timestamp, sender, text, type, null);
+    }
+
+    public ChatMessage(long timestamp, String sender, String text, Type type, String origin) {
+        this(timestamp, sender, UsernameTable.NO_USER, text, type, origin);
+    }
+
+    public ChatMessage(long timestamp, String sender, int senderId, String text, Type type, String origin) {
+        this.sequence = -1;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.senderId = senderId;
+        this.text = text;
+        this.type = type;
+        this.createdNanos = System.nanoTime();
+        this.origin = origin;
+    }
+
+    /**
+     * Create a queue marker that carries no text
+     */
+    public static ChatMessage marker(Type type) {
+        return new ChatMessage(0, null, null, type);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set as the message is logged, before it is queued for delivery
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+        this.wireLine = null;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * The line as users see it: "[yyyy-MM-dd HH:mm:ss] sender: text" for chat, "[...] text" otherwise
+     */
+    public String getFormatted() {
+        String line = formatted;
+        if (line == null) {
+            String time;
+            synchronized (DATE_FORMAT) {
+                time = DATE_FORMAT.format(new Date(timestamp));
+            }
+            String prefix = type == Type.CHAT && sender != null ? sender + ": " : "";
+            line = "[" + time + "] " + prefix + text;
+            formatted = line;
+        }
+        return line;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * True if another cluster node relayed this message here
+     */
+    public boolean isRemote() {
+        return origin != null;
+    }
+
+    /**
+     * Line sent to clients: MSG:<sequence>:<formatted text>
+     */
+    public String toWireLine() {
+        String line = wireLine;
+        if (line == null) {
+            line = WIRE_PREFIX + sequence + ":" + getFormatted();
+            wireLine = line;
+        }
+        return line;
+    }
+}
\ No newline at end of file
@@ -1,6 +1,12 @@
 import java.io.*;
 import java.net.*;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.text.SimpleDateFormat;
 
 /**
@@ -8,26 +14,170 @@ import java.text.SimpleDateFormat;
  * Features:
  * - Handles multiple client connections
  * - Broadcasts messages to all clients
- * - Manages user list with SimpleHashMap
- * - Processes messages with MessageQueue
- * - Persists chat history to file
+ * - Interns usernames as integer ids (see UsernameTable) and keeps connected
+ *   users in an int-keyed IntObjectMap, resolving names only at the edges
+ * - Processes messages with sharded MessageQueue workers
+ * - Logs every message to a write-ahead log as it is accepted, before it is queued
+ *   for delivery, and recovers sequence numbers and recent messages from it on
+ *   restart (see WriteAheadLog)
+ * - Persists chat history to binary history segments, compressed once closed (see HistoryStore)
+ * - Lets reconnecting clients resume from the last sequence number they saw
+ * - Pings idle clients and reaps connections that stop answering
+ * - Runs server timeouts on one shared hashed timing wheel
+ * - Records metrics, reported by /stats and a periodic log line
+ * - Emits Flight Recorder events for each stage of a message (see ChatEvents)
+ * - Stops gracefully: drains queued messages before closing connections
+ * - Optionally joins other servers in a cluster (see ClusterNode), and can
+ *   place each user on one node with a consistent-hash ring (see ConsistentHashRing)
  */
 public class ChatServer {
-    private static final int PORT = 12345;
-    private static final String CHAT_HISTORY_FILE = "chat_history.txt";
+    private static final int DEFAULT_PORT = 12345;
+    private static final String HISTORY_DIRECTORY = "chat_history";
+    private static final String LEGACY_HISTORY_FILE = "chat_history.txt";
+    private static final String WAL_DIRECTORY = "chat_wal";
+    private static final int WAL_BATCH_SIZE = 64; // Messages a shard worker takes, and commits, at once
+    private static final int WAL_REPLAY_LIMIT = 10_000; // Most messages replayed from the log to one client
+    private static final int DEFAULT_SHARD_COUNT = 1;
+    private static final double DEFAULT_RATE_LIMIT = 5.0; // Messages per second per client
+    private static final int DEFAULT_RATE_BURST = 20;
+    private static final int DEFAULT_THROTTLE_DISCONNECT = 100; // Consecutive throttled messages, 0 disables
+    private static final int SHARD_QUEUE_CAPACITY = 1000;
+    private static final int NOTICE_RESERVE = SHARD_QUEUE_CAPACITY / 10; // Shard queue slots kept for notices
+    private static final int HIGH_WATERMARK = SHARD_QUEUE_CAPACITY * 8 / 10;
+    private static final int LOW_WATERMARK = SHARD_QUEUE_CAPACITY / 2;
+    private static final long NOTICE_OFFER_TIMEOUT_MS = 1000;
+    private static final int REPLAY_BUFFER_SIZE = 1000; // Recent messages kept for resuming clients
+    private static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 30_000; // Idle time before a PING
+    private static final long DEFAULT_HEARTBEAT_TIMEOUT_MS = 10_000; // Time after the PING to answer
+    private static final long USERLIST_DEBOUNCE_MS = 200; // Joins and leaves within this share one user list
+    private static final long TIMER_TICK_MS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    private static final long STATS_LOG_INTERVAL_MS = 60_000;
+    private static final long DEFAULT_DRAIN_TIMEOUT_MS = 10_000; // Longest stop() waits for queued messages
+    private static final long PROCESSOR_POLL_MS = 100; // How often an idle shard worker checks for shutdown
+    private static final long CLIENT_CLOSE_GRACE_MS = 1000; // Time for clients to close their end on shutdown
+    private static final int OUTBOUND_QUEUE_CAPACITY = 1000; // Lines a client may fall behind before it is dropped
+    private static final long REPLAY_OFFER_TIMEOUT_MS = 10_000; // Longest a replay waits for the client to catch up
+    private static final ChatMessage USERLIST_REFRESH = ChatMessage.marker(ChatMessage.Type.USERLIST_REFRESH);
+
+    /**
+     * How messages are assigned to processing shards.
+     * GLOBAL keeps one total order for the whole chat (single shard),
+     * SENDER hashes by sender so only per-sender order is preserved.
+     */
+    public enum ShardingMode {
+        GLOBAL,
+        SENDER
+    }
 
     private ServerSocket serverSocket;
-    private SimpleHashMap<String, ClientHandler> clients;
-    private MessageQueue messageQueue;
-    private boolean running;
+    private int port;
+    private ClusterNode cluster; // Null when running alone
+    private boolean hashRouting; // Serve each user on the node the ring assigns them to
+    private volatile ConsistentHashRing ring; // Current cluster members, when hash routing
+    private LongAdder redirects;
+    private final UsernameTable usernames;
+    private IntObjectMap<ClientHandler> clients; // By user id
+    private volatile boolean running;
+    private volatile boolean draining; // Stopping: no new messages, queued ones are still delivered
+    private final AtomicBoolean stopping;
+    private final CountDownLatch processorsStopped;
     private SimpleDateFormat dateFormat;
-    private MessageProcessor messageProcessor;
+    private ShardingMode shardingMode;
+    private MessageProcessor[] processors;
+    private double rateLimit;
+    private int rateBurst;
+    private int throttleDisconnectThreshold;
+    private final AtomicLong throttledMessages;
+    private final AtomicLong nextSequence;
+    private final ReplayBuffer replayBuffer;
+    private volatile String serverEpoch; // Identifies the message log; sequence numbers restart with it
+    private WriteAheadLog wal;
+    private HistoryStore history;
+    private final SecureRandom random;
+    private final HashedWheelTimer timer; // Shared by all server-side timeouts
+    private volatile long heartbeatIntervalMillis;
+    private volatile long heartbeatTimeoutMillis;
+    private final AtomicLong reapedConnections;
+    private final AtomicLong slowConnections; // Closed for falling too far behind
+
+    // Metrics recorded on hot paths
+    private final ServerMetrics metrics;
+    private final LongAdder messagesReceived;
+    private final LongAdder messagesDelivered;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LatencyHistogram deliveryLatency; // Enqueue to last recipient queued for sending
+    private final LatencyHistogram fanOutLatency; // Queueing one message for every client
+    private final LatencyHistogram historyWriteLatency;
 
     public ChatServer() {
-        clients = new SimpleHashMap<>();
-        messageQueue = new MessageQueue();
+        this(DEFAULT_SHARD_COUNT, ShardingMode.GLOBAL);
+    }
+
+    public ChatServer(int shardCount, ShardingMode shardingMode) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+        // A single total order can only be kept by a single worker
+        if (shardingMode == ShardingMode.GLOBAL) {
+            shardCount = 1;
+        }
+
+        usernames = new UsernameTable();
+        clients = new IntObjectMap<>();
+        port = DEFAULT_PORT;
         running = false;
         dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        this.shardingMode = shardingMode;
+        rateLimit = DEFAULT_RATE_LIMIT;
+        rateBurst = DEFAULT_RATE_BURST;
+        throttleDisconnectThreshold = DEFAULT_THROTTLE_DISCONNECT;
+        throttledMessages = new AtomicLong();
+        nextSequence = new AtomicLong();
+        replayBuffer = new ReplayBuffer(REPLAY_BUFFER_SIZE);
+        serverEpoch = Long.toString(System.currentTimeMillis(), 36);
+        wal = new WriteAheadLog(new File(WAL_DIRECTORY), WriteAheadLog.SyncPolicy.ALWAYS);
+        random = new SecureRandom();
+        timer = new HashedWheelTimer("ChatServer-Timer", TIMER_TICK_MS, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE);
+        heartbeatIntervalMillis = DEFAULT_HEARTBEAT_INTERVAL_MS;
+        heartbeatTimeoutMillis = DEFAULT_HEARTBEAT_TIMEOUT_MS;
+        reapedConnections = new AtomicLong();
+        slowConnections = new AtomicLong();
+        processors = new MessageProcessor[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            processors[i] = new MessageProcessor(i);
+        }
+        stopping = new AtomicBoolean();
+        processorsStopped = new CountDownLatch(shardCount);
+
+        metrics = new ServerMetrics();
+        messagesReceived = metrics.counter("messages.received");
+        messagesDelivered = metrics.counter("messages.delivered");
+        bytesIn = metrics.counter("bytes.in");
+        bytesOut = metrics.counter("bytes.out");
+        deliveryLatency = metrics.histogram("latency.delivery");
+        fanOutLatency = metrics.histogram("latency.fanout");
+        historyWriteLatency = metrics.histogram("latency.history");
+        metrics.gauge("clients.connected", () -> clients.size());
+        metrics.gauge("queue.depth", () -> {
+            long depth = 0;
+            for (MessageProcessor processor : processors) {
+                depth += processor.queue.size();
+            }
+            return depth;
+        });
+        metrics.gauge("messages.dropped", () -> {
+            long dropped = getDroppedMessageCount();
+            for (MessageProcessor processor : processors) {
+                dropped += processor.shed.get();
+            }
+            return dropped;
+        });
+        metrics.gauge("messages.throttled", throttledMessages::get);
+        metrics.gauge("connections.reaped", reapedConnections::get);
+        metrics.gauge("connections.slow", slowConnections::get);
+        metrics.gauge("timer.pending", timer::getPendingCount);
     }
 
     /**
@@ -35,16 +185,37 @@ public class ChatServer {
      */
     public void start() {
         try {
-            serverSocket = new ServerSocket(PORT);
+            recover();
+        } catch (IOException e) {
+            System.err.println("Error recovering write-ahead log: " + e.getMessage());
+            return;
+        }
+        try {
+            openHistory();
+        } catch (IOException e) {
+            System.err.println("Error opening chat history: " + e.getMessage());
+            return;
+        }
+
+        try {
+            serverSocket = new ServerSocket(port);
             running = true;
-            System.out.println("Chat Server started on port " + PORT);
+            System.out.println("Chat Server started on port " + port + " with "
+                    + processors.length + " shard(s), " + shardingMode + " ordering");
+            if (cluster != null) {
+                cluster.start();
+            }
 
-            // Start message processor thread
-            messageProcessor = new MessageProcessor();
-            new Thread(messageProcessor).start();
+            // Start one message processor thread per shard
+            for (MessageProcessor processor : processors) {
+                new Thread(processor, "MessageProcessor-" + processor.shard).start();
+            }
 
-            // Accept client connections
-            while (running) {
+            timer.start();
+            scheduleStatsLog();
+
+            // Accept client connections until stop() closes the socket
+            while (running && !draining) {
                 try {
                     Socket clientSocket = serverSocket.accept();
                     System.out.println("New client connection from " + clientSocket.getInetAddress());
@@ -52,7 +223,7 @@ public class ChatServer {
                     ClientHandler handler = new ClientHandler(clientSocket);
                     new Thread(handler).start();
                 } catch (IOException e) {
-                    if (running) {
+                    if (running && !draining) {
                         System.err.println("Error accepting client connection: " + e.getMessage());
                     }
                 }
@@ -63,10 +234,26 @@ public class ChatServer {
     }
 
     /**
-     * Stop the server
+     * Stop the server gracefully, waiting up to DEFAULT_DRAIN_TIMEOUT_MS for queued messages
      */
     public void stop() {
-        running = false;
+        stop(DEFAULT_DRAIN_TIMEOUT_MS);
+    }
+
+    /**
+     * Stop the server without losing messages it has already accepted: stop accepting
+     * connections and new messages, let the shard workers deliver and save everything
+     * queued (waiting at most drainTimeoutMillis), send the cluster links their last
+     * frames, tell clients where to reconnect, and only then close the connections
+     */
+    public void stop(long drainTimeoutMillis) {
+        if (!stopping.compareAndSet(false, true)) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        boolean started = serverSocket != null;
+
+        draining = true;
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -74,180 +261,1475 @@ public class ChatServer {
         } catch (IOException e) {
             System.err.println("Error stopping server: " + e.getMessage());
         }
+
+        // The workers exit once their queues are empty
+        int queued = queuedMessageCount();
+        if (queued > 0) {
+            System.out.println("Draining " + queued + " queued message(s)");
+        }
+        boolean drained = !started;
+        try {
+            drained = drained || processorsStopped.await(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running = false;
+        if (!drained) {
+            System.err.println("Drain timed out, " + queuedMessageCount() + " queued message(s) not delivered");
+        }
+
+        // Work out where each client should go before the cluster links close
+        ConsistentHashRing successors = null;
+        if (cluster != null) {
+            List<String> members = cluster.getMembers();
+            if (!members.isEmpty()) {
+                successors = new ConsistentHashRing();
+                for (String node : members) {
+                    successors.addNode(node);
+                }
+            }
+            cluster.stop(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        disconnectClients(successors);
+
+        try {
+            wal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing write-ahead log: " + e.getMessage());
+        }
+        closeHistory();
+        timer.stop();
+        System.out.println(getShardStats());
+        System.out.println(metrics.summaryLine());
     }
 
     /**
-     * Broadcast message to all clients (enqueues for processing)
+     * Send every client a REDIRECT to the node now serving it (or a notice if there
+     * is none) and close our side for writing. Clients close their end on seeing
+     * end of stream; any still open after CLIENT_CLOSE_GRACE_MS are closed here.
      */
-    private void broadcast(String message, String sender) {
-        String timestamp = dateFormat.format(new Date());
-        String formattedMessage = "[" + timestamp + "] " + message;
+    private void disconnectClients(ConsistentHashRing successors) {
+        List<ClientHandler> handlers = clients.values();
+        for (ClientHandler handler : handlers) {
+            String address = successors != null
+                    ? cluster.getClientAddress(successors.ownerOf(handler.username)) : null;
+            handler.sendMessage(address != null ? "REDIRECT:" + address : "Server is shutting down.");
+            handler.shutdownOutput();
+        }
 
-        // Add to message queue for FIFO processing
-        messageQueue.enqueue(formattedMessage);
+        long graceEnd = System.currentTimeMillis() + CLIENT_CLOSE_GRACE_MS;
+        while (!clients.isEmpty() && System.currentTimeMillis() < graceEnd) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (ClientHandler handler : clients.values()) {
+            handler.close();
+        }
+        if (!handlers.isEmpty()) {
+            System.out.println("Disconnected " + handlers.size() + " client(s)");
+        }
     }
 
     /**
-     * Send active user list to all clients
+     * Open the write-ahead log and carry on from it: keep its epoch, continue its
+     * sequence numbers and refill the replay buffer, so clients can resume across a restart
      */
-    private void broadcastUserList() {
-        List<String> usernames = clients.keySet();
-        String userList = "USERLIST:" + String.join(",", usernames);
+    private void recover() throws IOException {
+        long records = wal.open(serverEpoch);
+        serverEpoch = wal.getEpoch();
+        long lastSequence = wal.getLastSequence();
+        nextSequence.set(lastSequence);
+        for (ChatMessage message : wal.readSince(Math.max(0, lastSequence - REPLAY_BUFFER_SIZE), REPLAY_BUFFER_SIZE)) {
+            replayBuffer.add(message);
+        }
+        if (records > 0) {
+            System.out.println("Recovered " + records + " message(s) from " + wal.getDirectory()
+                    + ", epoch " + serverEpoch + ", last sequence " + lastSequence);
+        }
+    }
 
-        for (String username : usernames) {
-            ClientHandler handler = clients.get(username);
-            if (handler != null) {
-                handler.sendMessage(userList);
-            }
+    private int queuedMessageCount() {
+        int queued = 0;
+        for (MessageProcessor processor : processors) {
+            queued += processor.queue.size();
         }
+        return queued;
     }
 
     /**
-     * Save message to chat history file
+     * Log messages to the given directory, forcing them to disk as the policy says.
+     * Must be called before start().
      */
-    private void saveToHistory(String message) {
-        try (FileWriter fw = new FileWriter(CHAT_HISTORY_FILE, true);
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-            out.println(message);
-        } catch (IOException e) {
-            System.err.println("Error saving to history: " + e.getMessage());
+    public void setWriteAheadLog(File directory, WriteAheadLog.SyncPolicy syncPolicy) {
+        wal = new WriteAheadLog(directory, syncPolicy);
+    }
+
+    /**
+     * Set the port clients connect to. Must be called before start().
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Join a cluster: listen for peer nodes on clusterPort and link to the given
+     * peers' cluster ports. Messages, user lists and username claims are then
+     * shared with the peers. advertisedHost is the host clients use to reach this
+     * server. Must be called after setPort() and before start().
+     */
+    public void enableCluster(String nodeId, String advertisedHost, int clusterPort, List<InetSocketAddress> peers) {
+        cluster = new ClusterNode(nodeId, advertisedHost + ":" + port, clusterPort, peers, new ClusterBridge());
+        metrics.gauge("cluster.peers", cluster::getConnectedPeerCount);
+        metrics.gauge("cluster.relayed", cluster::getRelayedCount);
+        metrics.gauge("cluster.dropped", cluster::getDroppedCount);
+    }
+
+    /**
+     * Serve each user on the cluster node that owns their name on a consistent-hash
+     * ring of the current members. Logins for other nodes' users are redirected there,
+     * and when members join or leave only the users whose owner changed are moved.
+     * Must be called after enableCluster() and before start().
+     */
+    public void enableHashRouting() {
+        if (cluster == null) {
+            throw new IllegalStateException("Hash routing needs a cluster");
         }
+        hashRouting = true;
+        redirects = metrics.counter("cluster.redirects");
+        rebuildRing();
     }
 
     /**
-     * Message processor thread - processes messages from the queue.
-     * This thread ensures FIFO message ordering by dequeuing messages
-     * in the order they were added and then broadcasting them to all clients.
+     * Rebuild the ring from the current members and redirect local users who now belong elsewhere
      */
-    private class MessageProcessor implements Runnable {
-        @Override
-        public void run() {
-            System.out.println("Message processor thread started");
-            while (running) {
-                try {
-                    // Dequeue message (blocks if queue is empty)
-                    String message = messageQueue.dequeue();
-                    if (message != null && running) {
-                        // Broadcast to all connected clients
-                        List<String> usernames = clients.keySet();
-                        for (String username : usernames) {
-                            ClientHandler handler = clients.get(username);
-                            if (handler != null) {
-                                handler.sendMessage(message);
-                            }
-                        }
+    private void rebuildRing() {
+        ConsistentHashRing updated = new ConsistentHashRing();
+        updated.addNode(cluster.getNodeId());
+        for (String node : cluster.getMembers()) {
+            updated.addNode(node);
+        }
+        ring = updated;
 
-                        // Save to chat history file
-                        saveToHistory(message);
-                    }
-                } catch (Exception e) {
-                    if (running) {
-                        System.err.println("Error processing message: " + e.getMessage());
-                    }
-                }
+        List<ClientHandler> handlers = clients.values();
+        int moved = 0;
+        for (ClientHandler handler : handlers) {
+            String address = ownerAddress(handler.username);
+            if (address != null) {
+                handler.redirect(address);
+                moved++;
             }
-            System.out.println("Message processor thread stopped");
         }
+        System.out.println("Ring has " + updated.size() + " node(s) " + updated.getNodes()
+                + ", moved " + moved + " of " + handlers.size() + " local user(s)");
     }
 
     /**
-     * Client handler - manages individual client connections
+     * Client address of the node that should serve this user, or null if it is this node
+     * (or the owner's address is not known yet)
      */
-    private class ClientHandler implements Runnable {
-        private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String username;
+    private String ownerAddress(String username) {
+        ConsistentHashRing current = ring;
+        if (current == null) {
+            return null;
+        }
+        String owner = current.ownerOf(username);
+        if (owner == null || owner.equals(cluster.getNodeId())) {
+            return null;
+        }
+        return cluster.getClientAddress(owner);
+    }
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+    /**
+     * Set the per-client message rate limit. Applies to clients that connect afterwards.
+     */
+    public void setRateLimit(double messagesPerSecond, int burst) {
+        if (messagesPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
         }
+        this.rateLimit = messagesPerSecond;
+        this.rateBurst = burst;
+    }
 
-        @Override
-        public void run() {
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+    /**
+     * Disconnect clients after this many consecutive throttled messages (0 disables)
+     */
+    public void setThrottleDisconnectThreshold(int threshold) {
+        this.throttleDisconnectThreshold = Math.max(0, threshold);
+    }
 
-                // Get username
-                out.println("Enter your username:");
-                username = in.readLine();
+    /**
+     * Get the total number of messages dropped by rate limiting
+     */
+    public long getThrottledMessageCount() {
+        return throttledMessages.get();
+    }
 
-                if (username == null || username.trim().isEmpty()) {
-                    socket.close();
-                    return;
-                }
+    /**
+     * Set how long a client may be silent before it is sent a PING, and how long
+     * it then has to answer (with PONG or any other line) before it is disconnected
+     */
+    public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        if (intervalMillis <= 0 || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Heartbeat interval and timeout must be positive");
+        }
+        this.heartbeatIntervalMillis = intervalMillis;
+        this.heartbeatTimeoutMillis = timeoutMillis;
+    }
 
-                username = username.trim();
+    /**
+     * Get the server's timer, for components that need timeouts.
+     * Tasks run on the timer's own threads, so a slow one holds up only itself.
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
 
-                // Check if username already exists
-                if (clients.containsKey(username)) {
-                    out.println("Username already taken. Disconnecting.");
-                    socket.close();
-                    return;
-                }
+    /**
+     * Get the server's metrics registry
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Log the metrics summary every STATS_LOG_INTERVAL_MS
+     */
+    private void scheduleStatsLog() {
+        timer.schedule(() -> {
+            if (running) {
+                System.out.println(metrics.summaryLine());
+                scheduleStatsLog();
+            }
+        }, STATS_LOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
 
-                // Add client to map
-                clients.put(username, this);
+    /**
+     * Get the number of connections closed because they stopped answering
+     */
+    public long getReapedConnectionCount() {
+        return reapedConnections.get();
+    }
 
-                System.out.println(username + " joined the chat");
-                broadcast(username + " has joined the chat.", "SERVER");
-                broadcastUserList();
+    /**
+     * Set what happens to messages arriving at a full shard queue
+     */
+    public void setOverflowPolicy(MessageQueue.OverflowPolicy policy) {
+        for (MessageProcessor processor : processors) {
+            processor.queue.setOverflowPolicy(policy);
+        }
+    }
 
-                // Handle messages
-                String message;
-                while ((message = in.readLine()) != null) {
-                    if (message.equalsIgnoreCase("/quit")) {
-                        break;
-                    }
+    /**
+     * Get the total number of messages dropped or refused by full shard queues
+     */
+    public long getDroppedMessageCount() {
+        long dropped = 0;
+        for (MessageProcessor processor : processors) {
+            dropped += processor.queue.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    /**
+     * Get the number of processing shards
+     */
+    public int getShardCount() {
+        return processors.length;
+    }
+
+    /**
+     * Get the number of messages waiting in a shard's queue
+     */
+    public int getShardQueueDepth(int shard) {
+        return processors[shard].queue.size();
+    }
+
+    /**
+     * Get the number of messages a shard has broadcast so far
+     */
+    public long getShardProcessedCount(int shard) {
+        return processors[shard].processed.get();
+    }
+
+    /**
+     * Get a one-line-per-shard summary of queue depth and throughput
+     */
+    public String getShardStats() {
+        StringBuilder sb = new StringBuilder("Shard stats:");
+        for (MessageProcessor processor : processors) {
+            sb.append("\n  shard ").append(processor.shard)
+              .append(": depth=").append(processor.queue.size())
+              .append(", processed=").append(processor.processed.get())
+              .append(", shed=").append(processor.shed.get() + processor.queue.getDroppedCount())
+              .append(", throughput=").append(String.format("%.1f", processor.throughput())).append(" msg/s");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find the handler of a local user by name. Only for names coming in from
+     * outside; once registered, a user is known by the handler's id.
+     */
+    private ClientHandler findClient(String name) {
+        int id = usernames.idOf(name);
+        return id != UsernameTable.NO_USER ? clients.get(id) : null;
+    }
+
+    /**
+     * Pick the shard for a sender. Messages with the same key always land
+     * on the same shard, so their relative order is preserved. Local users
+     * are keyed by id; remote senders, who have no id here, by name.
+     */
+    private MessageProcessor shardFor(int senderId, String sender) {
+        if (processors.length == 1 || (senderId == UsernameTable.NO_USER && sender == null)) {
+            return processors[0];
+        }
+        int key = senderId != UsernameTable.NO_USER ? senderId : sender.hashCode();
+        return processors[Math.floorMod(key, processors.length)];
+    }
+
+    /**
+     * Broadcast message to all clients (logs it and enqueues it for processing).
+     * Returns true once the message is durable in the write-ahead log, or false
+     * if it was shed because the sender's shard is overloaded or could not be logged.
+     */
+    private boolean broadcast(String message, String sender, int senderId) {
+        MessageProcessor processor = shardFor(senderId, sender);
+        // Shed user traffic while the shard drains from its high watermark
+        if (processor.queue.isAboveHighWatermark()) {
+            processor.shed.incrementAndGet();
+            return false;
+        }
+
+        // Add to the sender's shard queue for FIFO processing
+        ChatEvents.MessageEnqueued event = new ChatEvents.MessageEnqueued();
+        event.begin();
+        boolean accepted = accept(processor, createMessage(message, sender, senderId, ChatMessage.Type.CHAT),
+                MessageQueue.Lane.USER, 0);
+        if (event.shouldCommit()) {
+            event.sender = sender;
+            event.shard = processor.shard;
+            event.lane = MessageQueue.Lane.USER.name();
+            event.accepted = accepted;
+            event.commit();
+        }
+        return accepted;
+    }
+
+    /**
+     * Broadcast a server notice. Notices are not shed but will not wait
+     * forever for a stalled shard either.
+     */
+    private void broadcastNotice(String message, String key, int keyId) {
+        ChatMessage notice = createMessage(message, key, keyId, ChatMessage.Type.NOTICE);
+        MessageProcessor processor = shardFor(keyId, key);
+        ChatEvents.MessageEnqueued event = new ChatEvents.MessageEnqueued();
+        event.begin();
+        boolean accepted = accept(processor, notice, MessageQueue.Lane.SYSTEM, NOTICE_OFFER_TIMEOUT_MS);
+        if (event.shouldCommit()) {
+            event.sender = key;
+            event.shard = processor.shard;
+            event.lane = MessageQueue.Lane.SYSTEM.name();
+            event.accepted = accepted;
+            event.commit();
+        }
+        if (!accepted) {
+            System.err.println("Dropped notice: " + message);
+        }
+    }
+
+    /**
+     * Log a local message, queue it and commit the log, so it survives a crash
+     * from the moment this returns true even if no worker has taken it yet.
+     * Returns false if the lane stayed full for timeoutMillis or the log failed.
+     */
+    private boolean accept(MessageProcessor processor, ChatMessage message, MessageQueue.Lane lane, long timeoutMillis) {
+        try {
+            if (!logAndEnqueue(processor, message, lane, timeoutMillis)) {
+                processor.shed.incrementAndGet();
+                return false;
+            }
+            wal.commit();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error writing to write-ahead log: " + e.getMessage());
+            return false;
+        }
+    }
 
-                    if (!message.trim().isEmpty()) {
-                        broadcast(username + ": " + message, username);
+    /**
+     * Number a message, append it to the write-ahead log and queue it on its
+     * shard, waiting up to timeoutMillis for room in the lane. All three happen
+     * under the log's lock, so each lane of a shard queue is in sequence order
+     * and a sequence number is only used by a message that was both logged and
+     * queued. Returns false if the lane had no room. The message is durable at
+     * the next commit; the shard worker commits before delivering it.
+     */
+    private boolean logAndEnqueue(MessageProcessor processor, ChatMessage message, MessageQueue.Lane lane,
+                                  long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            synchronized (wal) {
+                if (processor.queue.hasRoom(lane)) {
+                    long before = nextSequence.get();
+                    message.setSequence(nextSequence.incrementAndGet());
+                    try {
+                        wal.append(message);
+                    } catch (IOException | RuntimeException e) {
+                        nextSequence.set(before); // Not in the log
+                        throw e;
                     }
+                    // Sequenced messages are only queued here, under this lock, and the user
+                    // list refresh stays within its reservation, so the room is still there
+                    processor.queue.tryEnqueue(message, lane);
+                    return true;
                 }
-            } catch (IOException e) {
-                System.err.println("Error handling client: " + e.getMessage());
-            } finally {
-                cleanup();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !processor.queue.awaitRoom(lane, remaining, TimeUnit.NANOSECONDS)) {
+                return false;
             }
         }
+    }
 
-        /**
-         * Send message to this client
-         */
-        public void sendMessage(String message) {
-            if (out != null) {
-                out.println(message);
-            }
+    /**
+     * Stamp a message with the current time (its sequence number is assigned when it is logged)
+     */
+    private ChatMessage createMessage(String text, String sender, int senderId, ChatMessage.Type type) {
+        long now = System.currentTimeMillis();
+        return new ChatMessage(now, sender, senderId, text, type, null);
+    }
+
+    /**
+     * Format a timestamp for display (SimpleDateFormat is not thread-safe)
+     */
+    private String formatTimestamp(long millis) {
+        synchronized (dateFormat) {
+            return dateFormat.format(new Date(millis));
         }
+    }
 
-        /**
-         * Cleanup when client disconnects
-         */
-        private void cleanup() {
-            if (username != null) {
-                clients.remove(username);
-                System.out.println(username + " left the chat");
-                broadcast(username + " has left the chat.", "SERVER");
-                broadcastUserList();
-            }
+    /**
+     * Queue a user list refresh on the control lane of the user's shard, so it is
+     * not stuck behind chat traffic. The refresh is debounced: joins and leaves
+     * within USERLIST_DEBOUNCE_MS of the first share one list, which is built
+     * when the refresh is processed.
+     */
+    private void broadcastUserList(int userId) {
+        MessageProcessor processor = shardFor(userId, null);
+        if (processor.userListPending.compareAndSet(false, true)) {
+            timer.schedule(() -> {
+                if (!processor.queue.tryEnqueue(USERLIST_REFRESH, MessageQueue.Lane.CONTROL)) {
+                    processor.userListPending.set(false);
+                }
+            }, USERLIST_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
 
-            try {
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (socket != null) socket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing client resources: " + e.getMessage());
+    /**
+     * Send active user list to all clients
+     */
+    private void sendUserList() {
+        List<ClientHandler> handlers = clients.values();
+        List<String> names = new ArrayList<>(handlers.size());
+        for (ClientHandler handler : handlers) {
+            names.add(handler.username);
+        }
+        List<String> everyone = names;
+        if (cluster != null) {
+            cluster.publishUsers(names);
+            everyone = new ArrayList<>(names);
+            everyone.addAll(cluster.getRemoteUsers());
+        }
+        String userList = "USERLIST:" + String.join(",", everyone);
+
+        for (ClientHandler handler : handlers) {
+            handler.sendMessage(userList);
+        }
+    }
+
+    /**
+     * Open the chat history for appending and copy in any logged messages it
+     * missed (accepted but not yet delivered when the server stopped). The
+     * write-ahead log then only keeps what the history lacks and what replay may need.
+     */
+    private synchronized void openHistory() throws IOException {
+        HistoryStore store = new HistoryStore(new File(HISTORY_DIRECTORY));
+        store.open();
+        // Shards deliver out of sequence order, so messages numbered below the last saved one may be missing too
+        long after = Math.max(0, store.getLastSequence() - WAL_REPLAY_LIMIT);
+        Set<Long> saved = store.getSequencesAfter(after);
+        long copied = 0;
+        List<ChatMessage> logged;
+        while (!(logged = wal.readSince(after, WAL_REPLAY_LIMIT)).isEmpty()) {
+            for (ChatMessage message : logged) {
+                if (!saved.contains(message.getSequence())) {
+                    store.write(HistoryRecord.fromMessage(message, HistoryRecord.MAIN_ROOM), UsernameTable.NO_USER);
+                    copied++;
+                }
             }
+            after = logged.get(logged.size() - 1).getSequence();
+        }
+        if (copied > 0) {
+            System.out.println("Saved " + copied + " logged message(s) missing from the history");
         }
+        history = store;
+        wal.setRetention(() -> Math.min(store.getLastSequence() + 1, nextSequence.get() - WAL_REPLAY_LIMIT + 1));
+
+        if (new File(LEGACY_HISTORY_FILE).exists()) {
+            System.out.println("Found text history " + LEGACY_HISTORY_FILE + ", which is no longer written; "
+                    + "convert it with: java HistoryConverter " + LEGACY_HISTORY_FILE + " chat_history-legacy.bin");
+        }
+    }
+
+    private synchronized void closeHistory() {
+        if (history == null) {
+            return;
+        }
+        try {
+            history.close();
+        } catch (IOException e) {
+            System.err.println("Error closing history: " + e.getMessage());
+        }
+        history = null;
     }
 
     /**
-     * Main method to start the server
+     * Save message to the chat history (shards share it, so appends are serialized)
      */
-    public static void main(String[] args) {
-        ChatServer server = new ChatServer();
+    private synchronized void saveToHistory(ChatMessage message) {
+        if (history == null) {
+            return;
+        }
+        try {
+            history.write(HistoryRecord.fromMessage(message, HistoryRecord.MAIN_ROOM), message.getSenderId());
+        } catch (IOException e) {
+            System.err.println("Error saving to history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Message processor thread - processes messages from one shard's queue.
+     * Each shard has its own queue and worker, so FIFO ordering is kept
+     * within a shard while shards broadcast to clients in parallel.
+     */
+    private class MessageProcessor implements Runnable, MessageQueue.WatermarkListener {
+        private final int shard;
+        private final MessageQueue<ChatMessage> queue;
+        private final AtomicLong processed;
+        private final AtomicLong shed;
+        private volatile long startNanos;
+        private final AtomicBoolean userListPending;
+
+        MessageProcessor(int shard) {
+            this.shard = shard;
+            this.queue = new MessageQueue<>(SHARD_QUEUE_CAPACITY, MessageQueue.OverflowPolicy.REJECT);
+            // Chat can't crowd out notices, nor the one user list refresh a shard has pending at a time
+            this.queue.setReservedCapacity(MessageQueue.Lane.SYSTEM, NOTICE_RESERVE);
+            this.queue.setReservedCapacity(MessageQueue.Lane.CONTROL, 1);
+            this.queue.setWatermarks(HIGH_WATERMARK, LOW_WATERMARK, this);
+            this.processed = new AtomicLong();
+            this.shed = new AtomicLong();
+            this.userListPending = new AtomicBoolean();
+        }
+
+        /**
+         * Log only: shedding asks the queue for its watermark state, since events
+         * from different threads can arrive here out of order
+         */
+        @Override
+        public void onHighWatermark(int size) {
+            System.err.println("Shard " + shard + " above high watermark (" + size + " queued), shedding user messages");
+        }
+
+        @Override
+        public void onLowWatermark(int size) {
+            System.out.println("Shard " + shard + " back below low watermark (" + size + " queued)");
+        }
+
+        /**
+         * Messages broadcast per second since this worker started
+         */
+        double throughput() {
+            long elapsed = System.nanoTime() - startNanos;
+            if (startNanos == 0 || elapsed <= 0) {
+                return 0.0;
+            }
+            return processed.get() * 1_000_000_000.0 / elapsed;
+        }
+
+        @Override
+        public void run() {
+            startNanos = System.nanoTime();
+            System.out.println("Message processor thread started for shard " + shard);
+            List<ChatMessage> batch = new ArrayList<>(WAL_BATCH_SIZE);
+            while (running) {
+                try {
+                    // Poll rather than block, so that a draining server sees the queue run dry
+                    ChatMessage first = queue.poll(PROCESSOR_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (draining) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (!running) {
+                        break;
+                    }
+
+                    // Take whatever else is waiting, so one log commit covers the batch
+                    batch.clear();
+                    batch.add(first);
+                    queue.drainTo(batch, WAL_BATCH_SIZE - 1);
+                    boolean durable = commitLog(batch.size());
+
+                    for (ChatMessage message : batch) {
+                        if (message.getType() == ChatMessage.Type.USERLIST_REFRESH) {
+                            // Clear first so a change during sending queues another refresh
+                            userListPending.set(false);
+                            sendUserList();
+                        } else if (durable) {
+                            deliver(message);
+                        }
+                    }
+                } catch (Exception e) {
+                    if (running) {
+                        System.err.println("Error processing message: " + e.getMessage());
+                    }
+                }
+            }
+            System.out.println("Message processor thread stopped for shard " + shard);
+            processorsStopped.countDown();
+        }
+
+        /**
+         * Deliver a logged message: make it replayable, relay it to the cluster,
+         * send it to every client and save it to the chat history
+         */
+        private void deliver(ChatMessage message) {
+            // Replayable before delivery, so a client registering concurrently gets it either live or in its replay
+            replayBuffer.add(message);
+            if (cluster != null && !message.isRemote()) {
+                cluster.relay(message);
+            }
+
+            ChatEvents.MessageDequeued dequeued = new ChatEvents.MessageDequeued();
+            if (dequeued.shouldCommit()) {
+                dequeued.sequence = message.getSequence();
+                dequeued.sender = message.getSender();
+                dequeued.shard = shard;
+                dequeued.queueTime = System.nanoTime() - message.getCreatedNanos();
+                dequeued.commit();
+            }
+
+            // Broadcast to all connected clients
+            ChatEvents.BroadcastCompleted broadcastEvent = new ChatEvents.BroadcastCompleted();
+            broadcastEvent.begin();
+            long fanOutStart = System.nanoTime();
+            // One snapshot of the handlers, rather than a name lookup per recipient
+            List<ClientHandler> handlers = clients.values();
+            for (ClientHandler handler : handlers) {
+                handler.deliver(message);
+            }
+            int recipients = handlers.size();
+            long delivered = System.nanoTime();
+            fanOutLatency.record(delivered - fanOutStart);
+            deliveryLatency.record(delivered - message.getCreatedNanos());
+            messagesDelivered.add(recipients);
+            if (broadcastEvent.shouldCommit()) {
+                broadcastEvent.sequence = message.getSequence();
+                broadcastEvent.sender = message.getSender();
+                broadcastEvent.recipients = recipients;
+                broadcastEvent.latency = delivered - message.getCreatedNanos();
+                broadcastEvent.commit();
+            }
+
+            // Save to chat history
+            ChatEvents.MessagePersisted persisted = new ChatEvents.MessagePersisted();
+            persisted.begin();
+            saveToHistory(message);
+            historyWriteLatency.recordSince(delivered);
+            if (persisted.shouldCommit()) {
+                persisted.sequence = message.getSequence();
+                persisted.sender = message.getSender();
+                persisted.commit();
+            }
+            processed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Make sure a batch taken from a shard queue is durable before anyone sees it.
+     * Its messages were logged when accepted, and usually committed then too, in
+     * which case this returns at once. Returns false, after logging the error, if
+     * the log could not be committed; the batch is then not delivered.
+     */
+    private boolean commitLog(int batchSize) {
+        try {
+            wal.commit();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error committing write-ahead log, dropped " + batchSize + " message(s): "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Client handler - manages individual client connections
+     */
+    private class ClientHandler implements Runnable {
+        private Socket socket;
+        private final ConnectionWriter writer;
+        private BufferedReader in;
+        private String username;
+        private int userId; // UsernameTable.NO_USER until registered
+        private String sessionToken;
+        private List<ChatMessage> pendingReplay; // Live messages held back while a resume replays
+        private long replayedThrough = -1; // Every message up to this one was replayed from the log
+        private final TokenBucket rateLimiter;
+        private long throttledCount;
+        private int consecutiveThrottled;
+        private volatile long lastActivity; // When a line was last read from the client
+        private volatile HashedWheelTimer.Timeout idleCheck;
+        private long pingSentAt; // When the last PING went out (idle checks only, which never overlap)
+
+        public ClientHandler(Socket socket) {
+            this.socket = socket;
+            this.writer = new ConnectionWriter(socket);
+            this.rateLimiter = new TokenBucket(rateLimit, rateBurst);
+            this.lastActivity = System.currentTimeMillis();
+        }
+
+        @Override
+        public void run() {
+            // Also covers clients that connect and never log in
+            scheduleIdleCheck(lastActivity + heartbeatIntervalMillis);
+            try {
+                in = new BufferedReader(new InputStreamReader(
+                        new ServerMetrics.CountingInputStream(socket.getInputStream(), bytesIn)));
+                writer.start();
+
+                // Get username, or "RESUME <epoch> <lastSequence> <token> <username>" when reconnecting
+                sendMessage("Enter your username:");
+                String login = in.readLine();
+                if (login == null) {
+                    return;
+                }
+
+                String resumeEpoch = null;
+                long lastSequence = -1;
+                String resumeToken = null;
+                String name = login;
+                if (login.startsWith("RESUME ")) {
+                    String[] parts = login.split(" ", 5);
+                    if (parts.length < 5) {
+                        sendMessage("Invalid resume request. Disconnecting.");
+                        return;
+                    }
+                    resumeEpoch = parts[1];
+                    resumeToken = parts[3];
+                    name = parts[4];
+                    try {
+                        lastSequence = Long.parseLong(parts[2]);
+                    } catch (NumberFormatException e) {
+                        lastSequence = -1;
+                    }
+                }
+
+                name = name.trim();
+                if (name.isEmpty()) {
+                    return;
+                }
+
+                // With hash routing, users are served only by the node that owns their name
+                String owner = ownerAddress(name);
+                if (owner != null) {
+                    redirects.increment();
+                    sendMessage("REDIRECT:" + owner);
+                    return;
+                }
+
+                // In a cluster, a name that is new here must first be claimed from the other nodes
+                boolean claimed = false;
+                if (cluster != null && findClient(name) == null) {
+                    try {
+                        claimed = cluster.claim(name);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (!claimed) {
+                        sendMessage("Username already taken. Disconnecting.");
+                        return;
+                    }
+                }
+
+                // Register atomically; a resume with the live session's token takes it over
+                ClientHandler replaced = null;
+                try {
+                    synchronized (clients) {
+                        ClientHandler existing = findClient(name);
+                        if (existing != null) {
+                            if (resumeToken == null || !resumeToken.equals(existing.sessionToken)) {
+                                sendMessage("Username already taken. Disconnecting.");
+                                return;
+                            }
+                            replaced = existing;
+                        }
+
+                        username = name;
+                        userId = usernames.intern(name);
+                        sessionToken = replaced != null ? replaced.sessionToken : newSessionToken();
+                        if (resumeEpoch != null) {
+                            pendingReplay = new ArrayList<>();
+                        }
+                        clients.put(userId, this);
+                    }
+                } finally {
+                    if (claimed) {
+                        cluster.finishClaim(name, username != null);
+                    }
+                }
+
+                sendMessage("SESSION:" + serverEpoch + ":" + sessionToken);
+                if (replaced != null) {
+                    // Half-open old connection: close it without a leave notice
+                    replaced.close();
+                    System.out.println(username + " resumed the session");
+                } else {
+                    System.out.println(username + " joined the chat");
+                    broadcastNotice(username + " has joined the chat.", username, userId);
+                }
+                if (resumeEpoch != null) {
+                    replayMissed(resumeEpoch, lastSequence);
+                }
+                broadcastUserList(userId);
+
+                // Handle messages
+                String message;
+                while ((message = in.readLine()) != null) {
+                    lastActivity = System.currentTimeMillis();
+                    if (message.equals("PONG")) {
+                        continue; // Heartbeat reply, nothing else to do
+                    }
+
+                    if (message.equalsIgnoreCase("/quit")) {
+                        break;
+                    }
+
+                    if (message.trim().isEmpty()) {
+                        continue;
+                    }
+                    messagesReceived.increment();
+                    ChatEvents.MessageReceived received = new ChatEvents.MessageReceived();
+                    if (received.shouldCommit()) {
+                        received.sender = username;
+                        received.length = message.length();
+                        received.commit();
+                    }
+
+                    // Rate limit before anything is queued or delivered
+                    if (!allowMessage()) {
+                        if (throttleDisconnectThreshold > 0 && consecutiveThrottled >= throttleDisconnectThreshold) {
+                            sendMessage("Disconnected for flooding.");
+                            System.out.println(username + " disconnected for flooding after "
+                                    + throttledCount + " throttled message(s)");
+                            break;
+                        }
+                        continue;
+                    }
+
+                    if (message.startsWith("/msg ")) {
+                        sendPrivateMessage(message);
+                        continue;
+                    }
+
+                    if (message.equalsIgnoreCase("/stats")) {
+                        for (String line : metrics.report()) {
+                            sendMessage(line);
+                        }
+                        continue;
+                    }
+
+                    if (draining) {
+                        sendMessage("Server is shutting down, your message was not delivered.");
+                        continue;
+                    }
+
+                    if (!broadcast(message, username, userId)) {
+                        sendMessage("Server is busy, your message was not delivered.");
+                    }
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) { // Closed on purpose when a resumed session takes over
+                    System.err.println("Error handling client: " + e.getMessage());
+                }
+            } finally {
+                cleanup();
+            }
+        }
+
+        /**
+         * Send a resuming client the messages after its last sequence number,
+         * then release the live messages held back meanwhile, skipping duplicates
+         */
+        private void replayMissed(String epoch, long lastSequence) {
+            List<ChatMessage> missed = new ArrayList<>();
+            // Sequence numbers from an earlier server run mean nothing to this one
+            if (serverEpoch.equals(epoch)) {
+                if (replayBuffer.hasGap(lastSequence)) {
+                    // Older than the buffer holds: read them back from the log
+                    missed = readLog(lastSequence);
+                    long first = missed.isEmpty() ? -1 : missed.get(0).getSequence();
+                    if (first != lastSequence + 1 || missed.size() == WAL_REPLAY_LIMIT) {
+                        sendMessage("Some messages were missed while you were disconnected.");
+                    }
+                    if (!missed.isEmpty()) {
+                        // The log also holds messages still queued; their live delivery would repeat them
+                        synchronized (this) {
+                            replayedThrough = missed.get(missed.size() - 1).getSequence();
+                        }
+                    }
+                } else {
+                    missed = replayBuffer.since(lastSequence);
+                }
+            }
+
+            Set<Long> replayed = new HashSet<>();
+            for (ChatMessage message : missed) {
+                if (!sendWaiting(message.toWireLine())) {
+                    return; // Too slow to take the replay, already closed
+                }
+                replayed.add(message.getSequence());
+            }
+
+            synchronized (this) {
+                for (ChatMessage message : pendingReplay) {
+                    if (!replayed.contains(message.getSequence())) {
+                        sendMessage(message.toWireLine());
+                    }
+                }
+                pendingReplay = null;
+            }
+        }
+
+        /**
+         * Read up to WAL_REPLAY_LIMIT logged messages after the given sequence number
+         */
+        private List<ChatMessage> readLog(long lastSequence) {
+            try {
+                return wal.readSince(lastSequence, WAL_REPLAY_LIMIT);
+            } catch (IOException e) {
+                System.err.println("Error reading write-ahead log: " + e.getMessage());
+                return replayBuffer.since(lastSequence);
+            }
+        }
+
+        /**
+         * Take a token from this client's bucket, counting the message if it is throttled
+         */
+        private boolean allowMessage() {
+            if (rateLimiter.tryAcquire()) {
+                consecutiveThrottled = 0;
+                return true;
+            }
+
+            throttledCount++;
+            throttledMessages.incrementAndGet();
+            if (consecutiveThrottled++ == 0) {
+                sendMessage("You are sending messages too fast. Messages are being dropped.");
+            }
+            return false;
+        }
+
+        /**
+         * Deliver "/msg user text" straight to the recipient with a single map lookup.
+         * Private messages skip the shard queues and the chat history.
+         */
+        private void sendPrivateMessage(String command) {
+            String[] parts = command.split("\\s+", 3);
+            if (parts.length < 3 || parts[2].trim().isEmpty()) {
+                sendMessage("Usage: /msg <user> <message>");
+                return;
+            }
+
+            String recipientName = parts[1];
+            ClientHandler recipient = findClient(recipientName);
+            String timestamp = formatTimestamp(System.currentTimeMillis());
+            if (recipient == null) {
+                // The recipient may be on another cluster node
+                if (cluster != null && cluster.sendPrivate(recipientName,
+                        "[" + timestamp + "] [PM from " + username + "] " + parts[2])) {
+                    sendMessage("[" + timestamp + "] [PM to " + recipientName + "] " + parts[2]);
+                } else {
+                    sendMessage("User " + recipientName + " is not online.");
+                }
+                return;
+            }
+
+            recipient.sendMessage("[" + timestamp + "] [PM from " + username + "] " + parts[2]);
+            if (recipient != this) {
+                sendMessage("[" + timestamp + "] [PM to " + recipientName + "] " + parts[2]);
+            }
+        }
+
+        /**
+         * Send a sequenced message to this client, holding it back while a resume is replaying
+         */
+        public synchronized void deliver(ChatMessage message) {
+            if (message.getSequence() <= replayedThrough) {
+                return;
+            }
+            if (pendingReplay != null) {
+                pendingReplay.add(message);
+                return;
+            }
+            sendMessage(message.toWireLine());
+        }
+
+        /**
+         * Queue a message for this client without blocking. A client too far behind
+         * to take it is disconnected, so one slow reader never stalls the others.
+         */
+        public void sendMessage(String message) {
+            if (!writer.send(message)) {
+                dropSlow();
+            }
+        }
+
+        /**
+         * Queue a message, waiting for the client to catch up if its queue is full.
+         * Only for this client's own thread, which is the only one it may hold up.
+         */
+        private boolean sendWaiting(String message) {
+            if (writer.send(message, REPLAY_OFFER_TIMEOUT_MS)) {
+                return true;
+            }
+            dropSlow();
+            return false;
+        }
+
+        /**
+         * Close a connection whose outbound queue is full
+         */
+        private void dropSlow() {
+            if (writer.isClosed()) {
+                return; // Already gone, or being dropped by another sender
+            }
+            slowConnections.incrementAndGet();
+            System.out.println("Disconnecting slow client " + describe()
+                    + " (" + OUTBOUND_QUEUE_CAPACITY + " line(s) unsent)");
+            close();
+        }
+
+        /**
+         * Check this connection for idleness at the given time.
+         * Activity only records the time; the check works out what is due when it runs.
+         */
+        private void scheduleIdleCheck(long atMillis) {
+            idleCheck = timer.schedule(this::checkIdle,
+                    atMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Ping a connection that has gone quiet, reap one that left a PING unanswered,
+         * otherwise check again when it could next become idle (runs as a timer task).
+         * The PING is only queued, and skipped while the writer still has lines to
+         * send: the client is then not reading, and the deadline reaps it all the same.
+         */
+        private void checkIdle() {
+            if (socket.isClosed()) {
+                return; // Already gone; cleanup raced with this check
+            }
+            long now = System.currentTimeMillis();
+            long last = lastActivity;
+            long interval = heartbeatIntervalMillis;
+            long timeout = heartbeatTimeoutMillis;
+            boolean pinged = pingSentAt > last; // No line since the PING
+
+            if (now - last < interval) {
+                scheduleIdleCheck(last + interval);
+            } else if (!pinged) {
+                pingSentAt = now;
+                if (writer.isIdle()) {
+                    sendMessage("PING");
+                }
+                scheduleIdleCheck(now + timeout);
+            } else if (now - pingSentAt < timeout) {
+                scheduleIdleCheck(pingSentAt + timeout);
+            } else {
+                reapedConnections.incrementAndGet();
+                System.out.println("Reaping idle connection " + describe()
+                        + " (no activity for " + (now - last) / 1000 + "s)");
+                close();
+            }
+        }
+
+        /**
+         * Name for log messages, falling back to the address before login
+         */
+        private String describe() {
+            return username != null ? username : String.valueOf(socket.getRemoteSocketAddress());
+        }
+
+        /**
+         * Tell the client to reconnect to the node that now owns its name, and close.
+         * The user is unregistered first, so this node doesn't deny the new owner's
+         * claim and no leave notice is sent: the user is moving, not leaving.
+         */
+        private void redirect(String address) {
+            synchronized (clients) {
+                if (clients.get(userId) == this) {
+                    clients.remove(userId);
+                }
+            }
+            redirects.increment();
+            System.out.println(username + " moved to another node");
+            sendMessage("REDIRECT:" + address);
+            writer.finish(true);
+            broadcastUserList(userId);
+        }
+
+        /**
+         * Finish sending and signal end of stream, leaving the client to close
+         */
+        private void shutdownOutput() {
+            writer.finish(false);
+        }
+
+        /**
+         * Close the connection; the read loop then exits and cleans up
+         */
+        private void close() {
+            writer.abort();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing client socket: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Cleanup when client disconnects
+         */
+        private void cleanup() {
+            HashedWheelTimer.Timeout check = idleCheck;
+            if (check != null) {
+                check.cancel();
+            }
+
+            // Only the registered handler announces the leave; a replaced session stays silent
+            boolean registered = false;
+            if (userId != UsernameTable.NO_USER) {
+                synchronized (clients) {
+                    if (clients.get(userId) == this) {
+                        clients.remove(userId);
+                        registered = true;
+                    }
+                }
+            }
+            if (registered && stopping.get()) {
+                System.out.println(username + " disconnected for shutdown");
+            } else if (registered) {
+                System.out.println(username + " left the chat");
+                broadcastNotice(username + " has left the chat.", username, userId);
+                broadcastUserList(userId);
+            }
+            if (userId != UsernameTable.NO_USER) {
+                usernames.release(userId); // The id may now go to another name
+            }
+
+            // Let the last lines (a refusal, or a goodbye) go out before closing
+            writer.finish(true);
+            writer.await(CLIENT_CLOSE_GRACE_MS);
+            writer.abort();
+            try {
+                if (in != null) in.close();
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing client resources: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writer thread that owns a client connection's output stream. Shard workers,
+     * other clients and the timer only queue lines for it, so none of them ever
+     * blocks on a client that has stopped reading.
+     */
+    private class ConnectionWriter implements Runnable {
+        private final Socket socket;
+        private final MessageQueue<String> queue;
+        private Thread thread;
+        private volatile boolean closed; // No more lines accepted
+
+        // Queued by finish() after the last line; compared by identity
+        private final String endOfStream = new String("END");
+        private final String endAndClose = new String("CLOSE");
+
+        ConnectionWriter(Socket socket) {
+            this.socket = socket;
+            this.queue = new MessageQueue<>(OUTBOUND_QUEUE_CAPACITY, MessageQueue.OverflowPolicy.REJECT);
+        }
+
+        synchronized void start() {
+            if (!closed) {
+                thread = new Thread(this, "ClientWriter-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        /**
+         * Queue a line without blocking. Returns false if the queue is full.
+         * Lines sent after the connection is finished or closed are dropped.
+         */
+        boolean send(String line) {
+            return closed || queue.tryEnqueue(line);
+        }
+
+        /**
+         * Queue a line, waiting up to the timeout for room
+         */
+        boolean send(String line, long timeoutMillis) {
+            return closed || queue.offer(line, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Check if everything queued has been handed to the socket
+         */
+        boolean isIdle() {
+            return queue.isEmpty();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Stop after writing everything queued so far, then shut down the sending
+         * side (end of stream) or close the socket. Doesn't wait for the writer.
+         */
+        void finish(boolean close) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            if (!queue.tryEnqueue(close ? endAndClose : endOfStream)) {
+                abort(); // Too far behind to be worth flushing
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing client socket: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Wait up to the timeout for the writer thread to finish
+         */
+        void await(long timeoutMillis) {
+            Thread writerThread;
+            synchronized (this) {
+                writerThread = thread;
+            }
+            if (writerThread == null) {
+                return;
+            }
+            try {
+                writerThread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Stop now, discarding anything still queued
+         */
+        void abort() {
+            Thread writerThread;
+            synchronized (this) {
+                closed = true;
+                writerThread = thread;
+            }
+            if (writerThread != null) {
+                writerThread.interrupt();
+            }
+            queue.clear();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new ServerMetrics.CountingOutputStream(socket.getOutputStream(), bytesOut)));
+                String line;
+                while ((line = queue.dequeue()) != null && line != endOfStream && line != endAndClose) {
+                    out.write(line);
+                    out.write('\n');
+                    if (queue.isEmpty()) {
+                        out.flush(); // A burst queued together goes out together
+                    }
+                }
+                if (line == null) {
+                    return; // Aborted: the socket is being closed
+                }
+                out.flush();
+                if (line == endOfStream) {
+                    socket.shutdownOutput();
+                } else if (line == endAndClose) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // Broken connection: closing it ends the read loop, which cleans up
+                closed = true;
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects the cluster node to this server's clients and shard queues
+     */
+    private class ClusterBridge implements ClusterNode.Listener {
+        /**
+         * Log and queue a peer's message for local delivery. Link readers must not
+         * block, so a full or overloaded shard sheds it instead, and the commit is
+         * left to the shard worker (the origin node has already made it durable).
+         */
+        @Override
+        public void onRemoteMessage(ChatMessage message) {
+            MessageProcessor processor = shardFor(UsernameTable.NO_USER, message.getSender());
+            boolean accepted;
+            try {
+                if (draining) {
+                    accepted = false; // The peer's own users still get it
+                } else if (message.getType() == ChatMessage.Type.NOTICE) {
+                    accepted = logAndEnqueue(processor, message, MessageQueue.Lane.SYSTEM, 0);
+                } else {
+                    accepted = !processor.queue.isAboveHighWatermark()
+                            && logAndEnqueue(processor, message, MessageQueue.Lane.USER, 0);
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing to write-ahead log: " + e.getMessage());
+                accepted = false;
+            }
+            if (!accepted) {
+                processor.shed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onRemotePrivateMessage(String recipient, String line) {
+            ClientHandler handler = findClient(recipient);
+            if (handler != null) {
+                handler.sendMessage(line);
+            }
+        }
+
+        @Override
+        public void onRemoteUsersChanged() {
+            broadcastUserList(UsernameTable.NO_USER);
+        }
+
+        @Override
+        public void onMembershipChanged() {
+            if (hashRouting && !stopping.get()) {
+                rebuildRing();
+            }
+        }
+
+        @Override
+        public boolean isLocalUser(String username) {
+            return findClient(username) != null;
+        }
+    }
+
+    /**
+     * Create an unguessable token that lets a client take over its own session
+     */
+    private String newSessionToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Main method to start the server.
+     * Usage: java ChatServer [--port P] [--fsync always|interval|none]
+     *                         [--node ID --cluster-port P --peers host:port,... [--host H] [--ring]]
+     *                         [shardCount] [global|sender]
+     */
+    public static void main(String[] args) {
+        int shardCount = DEFAULT_SHARD_COUNT;
+        ShardingMode mode = ShardingMode.GLOBAL;
+        int port = DEFAULT_PORT;
+        String nodeId = null;
+        String host = "localhost";
+        boolean ring = false;
+        int clusterPort = -1;
+        WriteAheadLog.SyncPolicy syncPolicy = WriteAheadLog.SyncPolicy.ALWAYS;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        ChatServer server;
+        try {
+            List<String> positional = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port": port = Integer.parseInt(args[++i]); break;
+                    case "--node": nodeId = args[++i]; break;
+                    case "--host": host = args[++i]; break;
+                    case "--ring": ring = true; break;
+                    case "--fsync": syncPolicy = WriteAheadLog.SyncPolicy.valueOf(args[++i].toUpperCase()); break;
+                    case "--cluster-port": clusterPort = Integer.parseInt(args[++i]); break;
+                    case "--peers":
+                        for (String peer : args[++i].split(",")) {
+                            int colon = peer.lastIndexOf(':');
+                            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                                    Integer.parseInt(peer.substring(colon + 1))));
+                        }
+                        break;
+                    default: positional.add(args[i]);
+                }
+            }
+            if (positional.size() > 0) {
+                shardCount = Integer.parseInt(positional.get(0));
+                mode = ShardingMode.SENDER;
+            }
+            if (positional.size() > 1) {
+                mode = ShardingMode.valueOf(positional.get(1).toUpperCase());
+            }
+            if ((nodeId == null) != (clusterPort < 0) || (ring && nodeId == null)) {
+                throw new IllegalArgumentException("--node and --cluster-port go together, --ring needs both");
+            }
+            server = new ChatServer(shardCount, mode);
+            server.setPort(port);
+            server.setWriteAheadLog(new File(WAL_DIRECTORY), syncPolicy);
+            if (nodeId != null) {
+                server.enableCluster(nodeId, host, clusterPort, peers);
+            }
+            if (ring) {
+                server.enableHashRouting();
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.err.println("Usage: java ChatServer [--port P] [--fsync always|interval|none] [--node ID --cluster-port P --peers host:port,... "
+                    + "[--host H] [--ring]] [shardCount] [global|sender]");
+            return;
+        }
 
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -0,0 +1,651 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links a ChatServer to its peers so that several servers form one chat.
+ * Each node keeps its own clients; chat lines and notices are relayed to every
+ * peer, user lists are merged, and a username is claimed from every peer
+ * before a login is accepted.
+ *
+ * Every node dials each configured peer for its outgoing link and accepts the
+ * peers' links for incoming traffic, so a pair of nodes shares two one-way
+ * connections. An outgoing link is written by its own thread, which sends
+ * queued frames in batches with one flush per batch. A node's members are the
+ * peers it currently has an outgoing link to.
+ *
+ * Frames are tab-separated lines. Backslash, tab, CR and newline within a field
+ * are escaped as \\, \t, \r and \n, so message text may contain any of them:
+ *   HELLO   node host:port                       first line each way on a new link, with the node's client address
+ *   RELAY   origin timestamp type sender text    a message delivered on the origin node
+ *   USERS   node user,user,...                   the node's complete local user list
+ *   CLAIM   node id username                     may node register this username?
+ *   GRANT   node id / DENY node id               answer to a claim
+ *   RELEASE node username                        a granted claim was not used
+ *   PM      node recipient line                  private message for a user on the receiving node
+ */
+public class ClusterNode {
+    private static final int LINK_QUEUE_CAPACITY = 10_000; // Frames waiting for a peer before they are dropped
+    private static final int MAX_BATCH = 256; // Frames written per flush
+    private static final long BASE_RETRY_MS = 500;
+    private static final long MAX_RETRY_MS = 5000;
+    private static final long CLAIM_TIMEOUT_MS = 2000;
+
+    /**
+     * Callbacks into the local server; called on link threads
+     */
+    public interface Listener {
+        void onRemoteMessage(ChatMessage message);
+        void onRemotePrivateMessage(String recipient, String line);
+        void onRemoteUsersChanged();
+        void onMembershipChanged();
+        boolean isLocalUser(String username);
+    }
+
+    private final String nodeId;
+    private final String clientAddress; // host:port clients use to reach this node
+    private final int clusterPort;
+    private final List<InetSocketAddress> peerAddresses;
+    private final Listener listener;
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private final List<PeerLink> peerLinks;
+    private final SimpleHashMap<String, PeerLink> linksByNode; // Connected outgoing links
+    private final SimpleHashMap<String, String> clientAddresses; // Node -> its client host:port
+    private final SimpleHashMap<String, List<String>> remoteUsers; // Node -> its local users
+    private final SimpleHashMap<String, Claim> claims; // Our logins waiting for peers, by username
+    private final SimpleHashMap<String, String> reservations; // Usernames granted to a peer, by username
+    private final AtomicLong nextClaimId;
+    private final AtomicLong relayed;
+    private final AtomicLong dropped;
+    private List<String> publishedUsers; // Last local user list sent to peers
+
+    /**
+     * A username claim waiting for every connected peer to answer
+     */
+    private static class Claim {
+        final long id;
+        final Set<String> waitingFor; // Peers that have not answered yet
+        final Set<String> granted;
+        boolean denied;
+        boolean won; // Every peer granted; the login is being registered
+
+        Claim(long id, Set<String> peers) {
+            this.id = id;
+            this.waitingFor = peers;
+            this.granted = new HashSet<>();
+        }
+
+        synchronized void answer(String node, boolean grant) {
+            if (waitingFor.remove(node)) {
+                if (grant) {
+                    granted.add(node);
+                } else {
+                    denied = true;
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait until every peer answered or one denied; false on deny or timeout
+         */
+        synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!denied && !waitingFor.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            won = !denied;
+            return won;
+        }
+    }
+
+    public ClusterNode(String nodeId, String clientAddress, int clusterPort, List<InetSocketAddress> peers,
+                       Listener listener) {
+        if (nodeId == null || nodeId.isEmpty() || nodeId.contains("\t")) {
+            throw new IllegalArgumentException("Node id must be non-empty and contain no tabs");
+        }
+        this.nodeId = nodeId;
+        this.clientAddress = clientAddress;
+        this.clusterPort = clusterPort;
+        this.peerAddresses = new ArrayList<>(peers);
+        this.listener = listener;
+        this.peerLinks = new ArrayList<>();
+        this.linksByNode = new SimpleHashMap<>();
+        this.clientAddresses = new SimpleHashMap<>();
+        this.remoteUsers = new SimpleHashMap<>();
+        this.claims = new SimpleHashMap<>();
+        this.reservations = new SimpleHashMap<>();
+        this.nextClaimId = new AtomicLong();
+        this.relayed = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.publishedUsers = Collections.emptyList();
+    }
+
+    /**
+     * Listen for peers and start dialing them
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(clusterPort);
+        running = true;
+        System.out.println("Cluster node " + nodeId + " listening for peers on port " + clusterPort);
+
+        Thread acceptor = new Thread(this::acceptPeers, "Cluster-Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (InetSocketAddress address : peerAddresses) {
+            PeerLink link = new PeerLink(address);
+            peerLinks.add(link);
+            link.thread.start();
+        }
+    }
+
+    public void stop() {
+        stop(0);
+    }
+
+    /**
+     * Stop accepting peers and close the links, first giving connected links up to
+     * timeoutMillis to send the frames already queued for them
+     */
+    public void stop(long timeoutMillis) {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing cluster socket: " + e.getMessage());
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (PeerLink link : peerLinks) {
+            if (!link.up) {
+                link.thread.interrupt(); // Waiting to redial; nothing to send
+                continue;
+            }
+            try {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0) {
+                    link.thread.join(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (PeerLink link : peerLinks) {
+            link.close();
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Peers this node currently has an outgoing link to
+     */
+    public List<String> getMembers() {
+        return linksByNode.keySet();
+    }
+
+    /**
+     * The host:port clients use to reach a node, or null if it is unknown
+     */
+    public String getClientAddress(String node) {
+        return node.equals(nodeId) ? clientAddress : clientAddresses.get(node);
+    }
+
+    /**
+     * Number of peers this node currently has an outgoing link to
+     */
+    public int getConnectedPeerCount() {
+        return linksByNode.size();
+    }
+
+    /**
+     * Frames sent to peers so far
+     */
+    public long getRelayedCount() {
+        return relayed.get();
+    }
+
+    /**
+     * Frames dropped because a peer's link was down or backed up
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Send a locally originated message to every peer
+     */
+    public void relay(ChatMessage message) {
+        sendToAll(frame("RELAY", nodeId, Long.toString(message.getTimestamp()), message.getType().name(),
+                message.getSender(), message.getText()));
+    }
+
+    /**
+     * Send a private message line to the node the recipient is on.
+     * Returns false if the recipient is not a user of any peer.
+     */
+    public boolean sendPrivate(String recipient, String line) {
+        for (String node : remoteUsers.keySet()) {
+            List<String> users = remoteUsers.get(node);
+            if (users != null && users.contains(recipient)) {
+                return send(node, frame("PM", nodeId, recipient, line));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Users on the other nodes
+     */
+    public List<String> getRemoteUsers() {
+        List<String> all = new ArrayList<>();
+        for (List<String> users : remoteUsers.values()) {
+            all.addAll(users);
+        }
+        return all;
+    }
+
+    /**
+     * Tell peers the local user list if it changed since it was last sent
+     */
+    public void publishUsers(List<String> localUsers) {
+        List<String> users = new ArrayList<>(localUsers);
+        Collections.sort(users);
+        synchronized (this) {
+            if (users.equals(publishedUsers)) {
+                return;
+            }
+            publishedUsers = users;
+        }
+        sendToAll(frame("USERS", nodeId, String.join(",", users)));
+    }
+
+    /**
+     * Ask every connected peer whether this node may register the username.
+     * Blocks until all grant, one denies, or CLAIM_TIMEOUT_MS passes. A true result
+     * must be followed by finishClaim() once the login is registered or abandoned.
+     */
+    public boolean claim(String username) throws InterruptedException {
+        Claim claim;
+        synchronized (claims) {
+            // Peers' user lists may be stale (a user moving between nodes), so only they decide
+            if (claims.containsKey(username) || reservations.containsKey(username)) {
+                return false;
+            }
+            claim = new Claim(nextClaimId.incrementAndGet(), new HashSet<>(linksByNode.keySet()));
+            claims.put(username, claim);
+        }
+
+        String request = frame("CLAIM", nodeId, Long.toString(claim.id), username);
+        for (String node : new ArrayList<>(claim.waitingFor)) {
+            if (!send(node, request)) {
+                claim.answer(node, true); // Link just went down: that node has no say
+            }
+        }
+
+        if (claim.await(CLAIM_TIMEOUT_MS)) {
+            return true;
+        }
+        finishClaim(username, false);
+        return false;
+    }
+
+    /**
+     * End a claim; if the username was not registered after all, peers that
+     * granted it are told to forget it
+     */
+    public void finishClaim(String username, boolean registered) {
+        Claim claim;
+        synchronized (claims) {
+            claim = claims.remove(username);
+        }
+        if (claim != null && !registered) {
+            synchronized (claim) {
+                for (String node : claim.granted) {
+                    send(node, frame("RELEASE", nodeId, username));
+                }
+            }
+        }
+    }
+
+    /**
+     * Decide a peer's claim: deny names in use or reserved here, and break ties
+     * between concurrent claims in favour of the lower node id. Other nodes'
+     * users are left to those nodes, which get the claim too; our copy of their
+     * lists may be stale while a user moves between nodes.
+     */
+    private boolean grant(String node, String username) {
+        synchronized (claims) {
+            if (listener.isLocalUser(username)) {
+                return false;
+            }
+            String reservedFor = reservations.get(username);
+            if (reservedFor != null && !reservedFor.equals(node)) {
+                return false;
+            }
+            Claim ours = claims.get(username);
+            if (ours != null) {
+                synchronized (ours) {
+                    if (ours.won || nodeId.compareTo(node) < 0) {
+                        return false;
+                    }
+                }
+            }
+            reservations.put(username, node);
+            return true;
+        }
+    }
+
+    private static String frame(String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            String field = fields[i];
+            for (int j = 0; j < field.length(); j++) {
+                char c = field.charAt(j);
+                if (c == '\\') {
+                    sb.append("\\\\");
+                } else if (c == '\t') {
+                    sb.append("\\t");
+                } else if (c == '\r') {
+                    sb.append("\\r");
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Split a frame into its fields and undo frame()'s escaping
+     */
+    private static String[] parseFrame(String line) {
+        String[] fields = line.split("\t", -1);
+        for (int i = 0; i < fields.length; i++) {
+            String field = fields[i];
+            if (field.indexOf('\\') < 0) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder(field.length());
+            for (int j = 0; j < field.length(); j++) {
+                char c = field.charAt(j);
+                if (c == '\\' && j + 1 < field.length()) {
+                    c = field.charAt(++j);
+                    c = c == 't' ? '\t' : c == 'r' ? '\r' : c == 'n' ? '\n' : c;
+                }
+                sb.append(c);
+            }
+            fields[i] = sb.toString();
+        }
+        return fields;
+    }
+
+    private void sendToAll(String frame) {
+        for (String node : linksByNode.keySet()) {
+            send(node, frame);
+        }
+    }
+
+    private boolean send(String node, String frame) {
+        PeerLink link = linksByNode.get(node);
+        if (link == null || !link.queue.tryEnqueue(frame)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        relayed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Accept incoming links from peers, one reader thread each
+     */
+    private void acceptPeers() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> readPeer(socket), "Cluster-Reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting peer connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read frames from a peer's outgoing link until it closes
+     */
+    private void readPeer(Socket socket) {
+        String node = null;
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"), true)) {
+            String first = in.readLine();
+            String[] hello = first != null ? parseFrame(first) : new String[0];
+            if (hello.length < 2 || !hello[0].equals("HELLO")) {
+                return;
+            }
+            node = hello[1];
+            out.println(frame("HELLO", nodeId, clientAddress));
+            System.out.println("Cluster peer " + node + " connected");
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                handleFrame(line);
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Cluster link from " + (node != null ? node : "peer") + " failed: " + e.getMessage());
+            }
+        } finally {
+            if (node != null) {
+                peerDown(node);
+            }
+        }
+    }
+
+    private void handleFrame(String line) {
+        String[] f = parseFrame(line);
+        try {
+            switch (f[0]) {
+                case "RELAY":
+                    ChatMessage message = new ChatMessage(Long.parseLong(f[2]), f[4], f[5],
+                            ChatMessage.Type.valueOf(f[3]), f[1]);
+                    listener.onRemoteMessage(message);
+                    break;
+                case "USERS":
+                    List<String> users = f[2].isEmpty() ? new ArrayList<>() : Arrays.asList(f[2].split(","));
+                    synchronized (claims) {
+                        remoteUsers.put(f[1], users);
+                        // The list now covers whatever was reserved for that node
+                        for (String username : reservations.keySet()) {
+                            if (f[1].equals(reservations.get(username))) {
+                                reservations.remove(username);
+                            }
+                        }
+                    }
+                    listener.onRemoteUsersChanged();
+                    break;
+                case "CLAIM":
+                    send(f[1], frame(grant(f[1], f[3]) ? "GRANT" : "DENY", nodeId, f[2]));
+                    break;
+                case "GRANT":
+                case "DENY":
+                    long id = Long.parseLong(f[2]);
+                    for (Claim claim : claims.values()) {
+                        if (claim.id == id) {
+                            claim.answer(f[1], f[0].equals("GRANT"));
+                        }
+                    }
+                    break;
+                case "RELEASE":
+                    synchronized (claims) {
+                        if (f[1].equals(reservations.get(f[2]))) {
+                            reservations.remove(f[2]);
+                        }
+                    }
+                    break;
+                case "PM":
+                    listener.onRemotePrivateMessage(f[2], f[3]);
+                    break;
+                default:
+                    System.err.println("Unknown cluster frame: " + f[0]);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Malformed cluster frame: " + line);
+        }
+    }
+
+    /**
+     * Forget a peer whose incoming link closed: its users are gone and it can't answer claims
+     */
+    private void peerDown(String node) {
+        System.out.println("Cluster peer " + node + " disconnected");
+        synchronized (claims) {
+            remoteUsers.remove(node);
+            for (String username : reservations.keySet()) {
+                if (node.equals(reservations.get(username))) {
+                    reservations.remove(username);
+                }
+            }
+        }
+        for (Claim claim : claims.values()) {
+            claim.answer(node, true);
+        }
+        // Our outgoing link to it is dead too; drop the node from the members right away
+        PeerLink link = linksByNode.get(node);
+        if (link != null) {
+            link.disconnected();
+        }
+        listener.onRemoteUsersChanged();
+    }
+
+    /**
+     * Outgoing link to one peer. Dials with backoff, announces this node,
+     * sends the current user list, then writes queued frames in batches.
+     */
+    private class PeerLink implements Runnable {
+        private final InetSocketAddress address;
+        private final MessageQueue<String> queue;
+        private final Thread thread;
+        private volatile Socket socket;
+        private volatile String node; // Peer's id once the handshake is done
+        private volatile boolean up; // Handshake done and not yet disconnected
+
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+            this.queue = new MessageQueue<>(LINK_QUEUE_CAPACITY, MessageQueue.OverflowPolicy.REJECT);
+            this.thread = new Thread(this, "Cluster-Link-" + address.getPort());
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long delay = BASE_RETRY_MS;
+            while (running) {
+                try {
+                    connectAndWrite();
+                    delay = BASE_RETRY_MS;
+                } catch (IOException e) {
+                    // Peer not up yet or the link broke; retry below
+                } finally {
+                    disconnected();
+                }
+                if (!running) {
+                    break;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                delay = Math.min(MAX_RETRY_MS, delay * 2);
+            }
+        }
+
+        private void connectAndWrite() throws IOException {
+            socket = new Socket(address.getHostString(), address.getPort());
+            socket.setTcpNoDelay(true); // Frames are already batched
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+
+            out.write(frame("HELLO", nodeId, clientAddress) + "\n");
+            out.flush();
+            String reply = in.readLine();
+            String[] hello = reply != null ? parseFrame(reply) : new String[0];
+            if (hello.length < 3 || !hello[0].equals("HELLO")) {
+                throw new IOException("bad handshake");
+            }
+            node = hello[1];
+            clientAddresses.put(node, hello[2]);
+
+            queue.clear(); // Frames from a previous connection are stale
+            synchronized (ClusterNode.this) {
+                queue.tryEnqueue(frame("USERS", nodeId, String.join(",", publishedUsers)));
+            }
+            up = true;
+            linksByNode.put(node, this);
+            System.out.println("Cluster link to " + node + " at " + address.getHostString() + ":" + address.getPort() + " up");
+            listener.onMembershipChanged();
+
+            while (true) {
+                String frame = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    if (!running) {
+                        return; // Stopping, and everything queued has been sent
+                    }
+                    if (socket.isClosed()) {
+                        throw new IOException("closed");
+                    }
+                    continue;
+                }
+                int batch = 0;
+                do {
+                    out.write(frame);
+                    out.write('\n');
+                } while (++batch < MAX_BATCH && (frame = queue.poll(0, TimeUnit.MILLISECONDS)) != null);
+                out.flush();
+            }
+        }
+
+        void disconnected() {
+            up = false;
+            close();
+            if (node != null && linksByNode.get(node) == this) {
+                linksByNode.remove(node);
+                System.out.println("Cluster link to " + node + " down");
+                listener.onMembershipChanged();
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
\ No newline at end of file
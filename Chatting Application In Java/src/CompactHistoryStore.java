@@ -0,0 +1,223 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compact append-only store for chat history.
+ * Messages are packed as UTF-8 bytes into large memory-mapped (or direct)
+ * buffers outside the Java heap, with one long per message in the offset index.
+ * Strings are only created for messages that are displayed or matched.
+ */
+public class CompactHistoryStore {
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024; // Bytes per mapped region
+
+    private final List<ByteBuffer> chunks; // Packed message bytes
+    private int[] chunkUsed; // Bytes written to each chunk
+    private long[] index; // (chunk << 32) | offset of each message
+    private int size;
+
+    private RandomAccessFile file; // Backing file when memory-mapped, null for direct buffers
+    private File path;
+    private long fileLength;
+
+    /**
+     * Create a store backed by a memory-mapped temporary file,
+     * falling back to direct buffers if the file can't be created
+     */
+    public CompactHistoryStore() {
+        this(true);
+    }
+
+    public CompactHistoryStore(boolean memoryMapped) {
+        this.chunks = new ArrayList<>();
+        this.chunkUsed = new int[4];
+        this.index = new long[1024];
+        this.size = 0;
+
+        if (memoryMapped) {
+            try {
+                path = File.createTempFile("chat-history", ".bin");
+                path.deleteOnExit();
+                file = new RandomAccessFile(path, "rw");
+            } catch (IOException e) {
+                System.err.println("Error creating history file, keeping history in memory: " + e.getMessage());
+                path = null;
+                file = null;
+            }
+        }
+    }
+
+    /**
+     * Append a message and return its index
+     */
+    public synchronized int append(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int chunk = chunks.size() - 1;
+        if (chunk < 0 || chunkUsed[chunk] + bytes.length > chunks.get(chunk).capacity()) {
+            chunk = newChunk(bytes.length);
+        }
+
+        ByteBuffer buffer = chunks.get(chunk);
+        int offset = chunkUsed[chunk];
+        buffer.position(offset);
+        buffer.put(bytes);
+        chunkUsed[chunk] = offset + bytes.length;
+
+        if (size == index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[size] = ((long) chunk << 32) | offset;
+        return size++;
+    }
+
+    /**
+     * Decode the message at an index
+     */
+    public synchronized String get(int i) {
+        checkIndex(i);
+        ByteBuffer buffer = chunks.get(chunkOf(i));
+        int start = offsetOf(i);
+        byte[] bytes = new byte[endOf(i) - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check if the message at an index contains the keyword, ignoring case the
+     * way MessageSearchIndex does (String.toLowerCase). ASCII keywords are matched
+     * directly on the stored bytes without decoding; a miss in a message that is
+     * not all ASCII is checked again on the decoded text, since a character such
+     * as the Kelvin sign lowercases to an ASCII letter.
+     */
+    public synchronized boolean contains(int i, String keyword) {
+        checkIndex(i);
+        if (!isAscii(keyword)) {
+            return get(i).toLowerCase(Locale.ROOT).contains(keyword.toLowerCase(Locale.ROOT));
+        }
+
+        ByteBuffer buffer = chunks.get(chunkOf(i));
+        int start = offsetOf(i);
+        int end = endOf(i);
+        String lowerKeyword = keyword.toLowerCase(Locale.ROOT);
+        byte[] needle = lowerKeyword.getBytes(StandardCharsets.US_ASCII);
+        for (int from = start; from + needle.length <= end; from++) {
+            int k = 0;
+            while (k < needle.length && toLowerAscii(buffer.get(from + k)) == needle[k]) {
+                k++;
+            }
+            if (k == needle.length) {
+                return true;
+            }
+        }
+        for (int from = start; from < end; from++) {
+            if (buffer.get(from) < 0) { // Lead or continuation byte of a non-ASCII character
+                return get(i).toLowerCase(Locale.ROOT).contains(lowerKeyword);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of stored messages
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of bytes used by message text (excluding the index)
+     */
+    public synchronized long getStoredBytes() {
+        long total = 0;
+        for (int c = 0; c < chunks.size(); c++) {
+            total += chunkUsed[c];
+        }
+        return total;
+    }
+
+    /**
+     * Release the buffers and delete the backing file
+     */
+    public synchronized void close() {
+        chunks.clear();
+        size = 0;
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing history file: " + e.getMessage());
+        }
+        // Mapped regions stay valid until collected, so the file may only go away on exit
+        if (path != null && !path.delete()) {
+            path.deleteOnExit();
+        }
+    }
+
+    private int newChunk(int minimumSize) {
+        int capacity = Math.max(CHUNK_SIZE, minimumSize);
+        ByteBuffer buffer = null;
+        if (file != null) {
+            try {
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, fileLength, capacity);
+                fileLength += capacity;
+            } catch (IOException e) {
+                System.err.println("Error mapping history file, using direct buffers: " + e.getMessage());
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        chunks.add(buffer);
+        if (chunks.size() > chunkUsed.length) {
+            chunkUsed = Arrays.copyOf(chunkUsed, chunkUsed.length * 2);
+        }
+        return chunks.size() - 1;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+    }
+
+    private int chunkOf(int i) {
+        return (int) (index[i] >>> 32);
+    }
+
+    private int offsetOf(int i) {
+        return (int) index[i];
+    }
+
+    /**
+     * Messages are stored back to back, so one ends where the next in the same chunk starts
+     */
+    private int endOf(int i) {
+        int chunk = chunkOf(i);
+        if (i + 1 < size && chunkOf(i + 1) == chunk) {
+            return offsetOf(i + 1);
+        }
+        return chunkUsed[chunk];
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,104 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring that assigns keys (usernames) to cluster nodes.
+ * Each node is placed on the ring at many points (virtual nodes) so keys are
+ * spread evenly, and a key belongs to the first point at or after its hash.
+ * Adding or removing one of N nodes moves only about 1/N of the keys.
+ */
+public class ConsistentHashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring;
+    private final List<String> nodes;
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Need at least one virtual node per node");
+        }
+        this.virtualNodes = virtualNodes;
+        this.ring = new TreeMap<>();
+        this.nodes = new ArrayList<>();
+    }
+
+    /**
+     * Add a node; does nothing if it is already on the ring
+     */
+    public synchronized void addNode(String node) {
+        if (nodes.contains(node)) {
+            return;
+        }
+        nodes.add(node);
+        for (int i = 0; i < virtualNodes; i++) {
+            // On a (very unlikely) collision the smaller node id keeps the point, whatever the order of adds
+            ring.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+        }
+    }
+
+    /**
+     * Remove a node; its keys move to the nodes that follow its points
+     */
+    public synchronized void removeNode(String node) {
+        if (!nodes.remove(node)) {
+            return;
+        }
+        ring.values().removeIf(node::equals);
+        // Give back any collided points the removed node had won
+        for (String other : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.putIfAbsent(hash(other + "#" + i), other);
+            }
+        }
+    }
+
+    /**
+     * Node that owns the key, or null if the ring is empty
+     */
+    public synchronized String ownerOf(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public synchronized boolean containsNode(String node) {
+        return nodes.contains(node);
+    }
+
+    public synchronized List<String> getNodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finished with MurmurHash3's mixer so
+     * that similar keys ("n1#1", "n1#2") land far apart. Stable across JVMs,
+     * so every node computes the same ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,266 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for large numbers of short timeouts.
+ * Timeouts are hashed into a ring of buckets by their deadline tick, and one
+ * ticker thread advances through the ring, running the timeouts in the bucket
+ * it reaches. Timeouts further away than one turn of the wheel wait out the
+ * extra rounds in place. Scheduling and cancelling are O(1) and cost a small
+ * object instead of a thread or executor task per timer.
+ * The ticker only finds the due timeouts; their tasks run on an executor, so a
+ * task that is slow or stuck delays itself and never the rest of the wheel.
+ */
+public class HashedWheelTimer implements Runnable {
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final String name;
+    private final Executor executor; // Runs expired tasks
+    private final ExecutorService ownExecutor; // Created here and shut down by stop(), else null
+    private long currentTick; // Last tick processed
+    private long startNanos;
+    private volatile boolean running;
+    private Thread thread;
+    private long pendingCount;
+
+    /**
+     * A scheduled task. Cancelling it removes it from its bucket straight away.
+     */
+    public class Timeout {
+        private final Runnable task;
+        private long remainingRounds; // Full turns of the wheel still to wait
+        private Bucket bucket; // Null once expired or cancelled
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancel the task if it hasn't run yet. Returns false if it already ran or was cancelled.
+         */
+        public boolean cancel() {
+            synchronized (HashedWheelTimer.this) {
+                if (bucket == null) {
+                    return false;
+                }
+                bucket.remove(this);
+                pendingCount--;
+                return true;
+            }
+        }
+
+        /**
+         * Check if the task is still waiting to run
+         */
+        public boolean isPending() {
+            synchronized (HashedWheelTimer.this) {
+                return bucket != null;
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts hashed to one slot
+     */
+    private static class Bucket {
+        private HashedWheelTimer.Timeout head;
+        private HashedWheelTimer.Timeout tail;
+
+        void add(HashedWheelTimer.Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(HashedWheelTimer.Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    public HashedWheelTimer(String name) {
+        this(name, 100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Create a timer whose tasks run on its own pool of daemon threads.
+     * The pool keeps one thread while tasks are quick and adds more only when
+     * every thread is busy. The wheel size is rounded up to a power of two.
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        this(name, tickDuration, unit, wheelSize, Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, name + "-Task");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * Create a timer whose tasks run on the given executor
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize, Executor executor) {
+        this(name, tickDuration, unit, wheelSize, executor, false);
+    }
+
+    private HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize,
+                             Executor executor, boolean ownsExecutor) {
+        if (tickDuration <= 0 || wheelSize < 1) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+        }
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.name = name;
+        this.executor = executor;
+        this.ownExecutor = ownsExecutor ? (ExecutorService) executor : null;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Start the ticker thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        startNanos = System.nanoTime();
+        currentTick = 0;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the ticker thread. Pending timeouts are discarded; tasks already
+     * handed to the executor still run.
+     */
+    public void stop() {
+        Thread ticker;
+        synchronized (this) {
+            running = false;
+            ticker = thread;
+            thread = null;
+        }
+        if (ticker != null) {
+            ticker.interrupt();
+        }
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Run a task once the delay has passed.
+     * Accuracy is one tick: tasks are handed to the executor on the first tick
+     * at or after their deadline.
+     */
+    public synchronized Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay));
+        // Round up so the task never runs early, and never into the tick being
+        // processed, which would make it wait a whole turn
+        long deadlineTick = Math.max(currentTick + 1, (deadlineNanos + tickNanos - 1) / tickNanos);
+
+        Timeout timeout = new Timeout(task);
+        timeout.remainingRounds = (deadlineTick - currentTick - 1) / wheel.length;
+        wheel[(int) (deadlineTick & mask)].add(timeout);
+        pendingCount++;
+        return timeout;
+    }
+
+    /**
+     * Get the number of timeouts waiting to run
+     */
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long nextTickNanos = startNanos + (currentTick + 1) * tickNanos;
+            long sleepNanos = nextTickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+
+            for (Timeout timeout : advance()) {
+                try {
+                    executor.execute(() -> runTask(timeout.task));
+                } catch (RejectedExecutionException e) {
+                    return; // Stopped while handing out this tick's tasks
+                }
+            }
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println("Error running " + name + " task: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Move to the next tick and unlink the timeouts that are due in it
+     */
+    private synchronized List<Timeout> advance() {
+        currentTick++;
+        Bucket bucket = wheel[(int) (currentTick & mask)];
+        List<Timeout> expired = new ArrayList<>();
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                bucket.remove(timeout);
+                pendingCount--;
+                expired.add(timeout);
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+        return expired;
+    }
+}
\ No newline at end of file
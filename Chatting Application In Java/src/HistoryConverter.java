@@ -0,0 +1,134 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * Converts legacy text chat history ("[yyyy-MM-dd HH:mm:ss] user: text" lines)
+ * to the binary history format, and prints binary history with optional
+ * filters, from one file or from the server's history directory (segments and
+ * their archives, see HistoryStore).
+ *
+ * Usage: java HistoryConverter <chat_history.txt> <chat_history.bin>
+ *        java HistoryConverter --print <chat_history/ | file.bin> [--user NAME] [--room N]
+ *                              [--from "yyyy-MM-dd HH:mm:ss"] [--until "yyyy-MM-dd HH:mm:ss"] [--after SEQ]
+ */
+public class HistoryConverter {
+    private static final String JOINED_SUFFIX = " has joined the chat.";
+    private static final String LEFT_SUFFIX = " has left the chat.";
+
+    private final SimpleDateFormat dateFormat;
+
+    public HistoryConverter() {
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        dateFormat.setLenient(false);
+    }
+
+    /**
+     * Convert a legacy text history file. Lines have no sequence numbers, so
+     * records are numbered from 1 in file order; a line without a timestamp
+     * keeps the previous line's. Returns the number of records written.
+     */
+    public long convert(File legacy, File target) throws IOException {
+        long count = 0;
+        long timestamp = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(legacy),
+                StandardCharsets.UTF_8));
+             HistoryWriter out = new HistoryWriter(new FileOutputStream(target))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String rest = line;
+                if (line.length() >= 22 && line.charAt(0) == '[' && line.charAt(20) == ']') {
+                    try {
+                        timestamp = dateFormat.parse(line.substring(1, 20)).getTime();
+                        rest = line.substring(22);
+                    } catch (ParseException e) {
+                        // Not a timestamp after all: keep the whole line as text
+                    }
+                }
+                out.write(parseLine(++count, timestamp, rest));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Tell join and leave notices from "user: text" chat lines
+     */
+    private static HistoryRecord parseLine(long sequence, long timestamp, String text) {
+        for (String suffix : new String[] {JOINED_SUFFIX, LEFT_SUFFIX}) {
+            if (text.endsWith(suffix) && text.length() > suffix.length()) {
+                String user = text.substring(0, text.length() - suffix.length());
+                return new HistoryRecord(sequence, timestamp, user, HistoryRecord.MAIN_ROOM,
+                        ChatMessage.Type.NOTICE, text);
+            }
+        }
+        int colon = text.indexOf(": ");
+        if (colon > 0) {
+            return new HistoryRecord(sequence, timestamp, text.substring(0, colon), HistoryRecord.MAIN_ROOM,
+                    ChatMessage.Type.CHAT, text.substring(colon + 2));
+        }
+        return new HistoryRecord(sequence, timestamp, null, HistoryRecord.MAIN_ROOM, ChatMessage.Type.NOTICE, text);
+    }
+
+    /**
+     * Print the records of a binary history file, or of every segment and archive
+     * in a history directory, that come after the given sequence number and match
+     * the filter. Segments and archive blocks before that sequence number are not
+     * read. Returns the number printed.
+     */
+    public long print(File history, HistoryReader.Filter filter, long afterSequence, PrintStream out)
+            throws IOException {
+        File[] segments = history.isDirectory() ? HistoryStore.listSegments(history) : new File[] {history};
+        long count = 0;
+        for (int i = HistoryStore.firstSegmentAfter(segments, afterSequence); i < segments.length; i++) {
+            try (HistoryReader in = HistoryStore.openSegment(segments[i], afterSequence + 1)) {
+                HistoryRecord record;
+                while ((record = in.next(filter)) != null) {
+                    if (record.getSequence() <= afterSequence) {
+                        continue;
+                    }
+                    out.println(record.getSequence() + " " + record.toDisplayLine(dateFormat));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public static void main(String[] args) {
+        HistoryConverter converter = new HistoryConverter();
+        try {
+            if (args.length >= 2 && args[0].equals("--print")) {
+                HistoryReader.Filter filter = new HistoryReader.Filter();
+                long after = Long.MIN_VALUE;
+                for (int i = 2; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--user": filter.sender(args[++i]); break;
+                        case "--room": filter.room(Integer.parseInt(args[++i])); break;
+                        case "--from": filter.from(converter.dateFormat.parse(args[++i]).getTime()); break;
+                        case "--until": filter.until(converter.dateFormat.parse(args[++i]).getTime()); break;
+                        case "--after": after = Long.parseLong(args[++i]); break;
+                        default: throw new IllegalArgumentException(args[i]);
+                    }
+                }
+                converter.print(new File(args[1]), filter, after, System.out);
+            } else if (args.length == 2) {
+                long count = converter.convert(new File(args[0]), new File(args[1]));
+                System.out.println("Converted " + count + " line(s): " + new File(args[0]).length()
+                        + " -> " + new File(args[1]).length() + " bytes");
+            } else {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | ParseException e) {
+            System.err.println("Usage: java HistoryConverter <chat_history.txt> <chat_history.bin>");
+            System.err.println("       java HistoryConverter --print <chat_history/ | file.bin> [--user NAME] [--room N] "
+                    + "[--from \"yyyy-MM-dd HH:mm:ss\"] [--until \"yyyy-MM-dd HH:mm:ss\"] [--after SEQ]");
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,256 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming decoder for the binary chat history format (see HistoryWriter).
+ * Records can be filtered by time range, sender and room; records that do not
+ * match are passed over without decoding their text, and a sender filter
+ * compares ids rather than names.
+ */
+public class HistoryReader implements Closeable {
+    private static final Filter NONE = new Filter().from(Long.MAX_VALUE); // Matches no record
+    private static final ChatMessage.Type[] TYPES = ChatMessage.Type.values();
+
+    private final InputStream in;
+    private final boolean selfContained; // Archive entries: each record stands alone
+    private final List<String> senders; // Index id - 1
+    private long position; // Bytes up to the end of the last complete entry
+    private long offset; // Bytes read so far
+    private long lastSequence;
+    private long lastTimestamp;
+    private byte[] textBuffer;
+
+    /**
+     * Which records to return. Unset fields match everything.
+     */
+    public static class Filter {
+        private long from = Long.MIN_VALUE;
+        private long until = Long.MAX_VALUE;
+        private String sender;
+        private int room = -1;
+
+        /**
+         * Records at or after this time (epoch milliseconds)
+         */
+        public Filter from(long timestamp) {
+            this.from = timestamp;
+            return this;
+        }
+
+        /**
+         * Records before this time (epoch milliseconds)
+         */
+        public Filter until(long timestamp) {
+            this.until = timestamp;
+            return this;
+        }
+
+        public Filter sender(String sender) {
+            this.sender = sender;
+            return this;
+        }
+
+        public Filter room(int room) {
+            this.room = room;
+            return this;
+        }
+    }
+
+    public HistoryReader(InputStream in) throws IOException {
+        this(in, false);
+        if (readInt() != HistoryWriter.MAGIC) {
+            throw new IOException("Not a chat history file");
+        }
+        int version = readByte();
+        if (version != HistoryWriter.VERSION) {
+            throw new IOException("Unsupported history version " + version);
+        }
+        position = offset;
+    }
+
+    private HistoryReader(InputStream in, boolean selfContained) {
+        this.in = new BufferedInputStream(in);
+        this.selfContained = selfContained;
+        this.senders = new ArrayList<>();
+        this.textBuffer = new byte[256];
+    }
+
+    /**
+     * Read the self-contained entries of a history archive (see HistoryStore),
+     * which have no header
+     */
+    public static HistoryReader forArchive(InputStream in) {
+        return new HistoryReader(in, true);
+    }
+
+    /**
+     * Read the next record, or null at the end of the stream (or at a record torn by a crash)
+     */
+    public HistoryRecord next() throws IOException {
+        return next(null);
+    }
+
+    /**
+     * Read the next record that matches the filter, or null at the end of the stream
+     */
+    public HistoryRecord next(Filter filter) throws IOException {
+        int senderFilter = filter != null && filter.sender != null ? senderId(filter.sender) : 0;
+        try {
+            int tag;
+            while ((tag = in.read()) != -1) {
+                offset++;
+                if (tag == HistoryWriter.TAG_SENDER) {
+                    long id = readVarLong();
+                    int length = readLength();
+                    String name = new String(readBytes(length), 0, length, StandardCharsets.UTF_8);
+                    if (selfContained) {
+                        senders.clear(); // The next record's sender, as id 1
+                        senderFilter = 0;
+                    }
+                    if (id != senders.size() + 1) {
+                        throw new IOException("Sender id " + id + " out of order");
+                    }
+                    senders.add(name);
+                    if (filter != null && name.equals(filter.sender)) {
+                        senderFilter = senders.size();
+                    }
+                    position = offset;
+                    continue;
+                }
+                if (tag != HistoryWriter.TAG_RECORD) {
+                    throw new IOException("Unknown history entry " + tag + " at offset " + (offset - 1));
+                }
+
+                int type = readByte();
+                if (type >= TYPES.length) {
+                    throw new IOException("Unknown message type " + type + " at offset " + (offset - 1));
+                }
+                long sequence = (selfContained ? 0 : lastSequence) + unzigzag(readVarLong());
+                long timestamp = (selfContained ? 0 : lastTimestamp) + unzigzag(readVarLong());
+                long sender = readVarLong();
+                long room = readVarLong();
+                int length = readLength();
+                // Checked as longs: a corrupt varint must not wrap into a valid-looking int
+                if (sender < 0 || sender > senders.size() || room < 0 || room > Integer.MAX_VALUE) {
+                    throw new IOException("Corrupt history record at offset " + position);
+                }
+                int senderId = (int) sender;
+                boolean match = filter == null
+                        || (timestamp >= filter.from && timestamp < filter.until
+                            && (filter.sender == null || (senderFilter != 0 && senderId == senderFilter))
+                            && (filter.room < 0 || room == filter.room));
+                // Read even when skipped (skip() may pass the end of a torn file), but only decode matches
+                readBytes(length);
+                lastSequence = sequence;
+                lastTimestamp = timestamp;
+                position = offset;
+                if (match) {
+                    String name = senderId > 0 ? senders.get(senderId - 1) : null;
+                    return new HistoryRecord(sequence, timestamp, name, (int) room, TYPES[type],
+                            new String(textBuffer, 0, length, StandardCharsets.UTF_8));
+                }
+            }
+        } catch (EOFException e) {
+            // Torn last entry: position stays at the end of the last complete one
+        }
+        return null;
+    }
+
+    /**
+     * Read to the end of the stream without decoding any text, to learn the
+     * sender dictionary and the last sequence number and timestamp
+     */
+    public void skipToEnd() throws IOException {
+        next(NONE);
+    }
+
+    /**
+     * Sender names in id order, as defined so far
+     */
+    public List<String> getSenders() {
+        return new ArrayList<>(senders);
+    }
+
+    /**
+     * Bytes of complete entries read so far, including the header
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int senderId(String name) {
+        return senders.indexOf(name) + 1;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        if (textBuffer.length < length) {
+            textBuffer = new byte[Math.max(length, textBuffer.length * 2)];
+        }
+        int read = 0;
+        while (read < length) {
+            int n = in.read(textBuffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        offset += length;
+        return textBuffer;
+    }
+
+    /**
+     * Read a name or text length, rejecting one no writer would produce
+     * before it can size a buffer
+     */
+    private int readLength() throws IOException {
+        long length = readVarLong();
+        if (length < 0 || length > HistoryWriter.MAX_FIELD_BYTES) {
+            throw new IOException("Corrupt length " + length + " at offset " + offset);
+        }
+        return (int) length;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        offset++;
+        return b;
+    }
+
+    private int readInt() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint at offset " + offset);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,67 @@
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * One entry of the binary chat history (see HistoryWriter). The sequence
+ * number, timestamp, sender, room and text are kept apart rather than in one
+ * formatted line, so history can be queried without parsing strings.
+ */
+public class HistoryRecord {
+    public static final int MAIN_ROOM = 0; // The server has a single chat room
+
+    private final long sequence;
+    private final long timestamp; // Epoch milliseconds
+    private final String sender; // Null for server notices about nobody in particular
+    private final int room;
+    private final ChatMessage.Type type;
+    private final String text; // For chat lines, without the "sender: " prefix
+
+    public HistoryRecord(long sequence, long timestamp, String sender, int room, ChatMessage.Type type, String text) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.room = room;
+        this.type = type;
+        this.text = text;
+    }
+
+    /**
+     * Copy a delivered message's fields into a record
+     */
+    public static HistoryRecord fromMessage(ChatMessage message, int room) {
+        return new HistoryRecord(message.getSequence(), message.getTimestamp(), message.getSender(), room,
+                message.getType(), message.getText());
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public int getRoom() {
+        return room;
+    }
+
+    public ChatMessage.Type getType() {
+        return type;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * The line as users see it: "[yyyy-MM-dd HH:mm:ss] sender: text" for chat, "[...] text" otherwise
+     */
+    public String toDisplayLine(SimpleDateFormat dateFormat) {
+        String prefix = type == ChatMessage.Type.CHAT && sender != null ? sender + ": " : "";
+        return "[" + dateFormat.format(new Date(timestamp)) + "] " + prefix + text;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,351 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The server's chat history: a directory of binary history segments (see
+ * HistoryWriter), each named after the first sequence number it holds. The
+ * live segment is closed at segmentBytes and a new one started, and closed
+ * segments are compressed in the background into SegmentArchive files on a
+ * low-priority thread that holds no lock while it compresses. Readers get
+ * segments and archives alike through openSegment().
+ */
+public class HistoryStore implements Closeable {
+    public static final String SUFFIX = ".bin";
+    public static final long DEFAULT_SEGMENT_BYTES = 16L << 20;
+    private static final String ARCHIVE_LABEL = "chat-history";
+    private static final long ARCHIVE_CHECK_MS = 60_000; // Archiver also wakes up when a segment is closed
+
+    private final File directory;
+    private final long segmentBytes;
+    private File currentSegment; // Null until the first record after open() or a roll
+    private HistoryWriter writer;
+    private long lastSequence;
+    private Thread archiveThread;
+    private boolean archiving;
+    private final Object archiveSignal;
+    private volatile boolean open;
+
+    public HistoryStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public HistoryStore(File directory, long segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.archiving = true;
+        this.archiveSignal = new Object();
+    }
+
+    /**
+     * Whether to compress closed segments in the background (on by default).
+     * Must be called before open().
+     */
+    public void setArchiving(boolean archiving) {
+        this.archiving = archiving;
+    }
+
+    /**
+     * Open the history for appending, creating the directory if needed. The last
+     * segment is continued (cutting off a record torn by a crash); older ones are
+     * left to the archiver.
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create history directory " + directory);
+        }
+        // Leftovers of an archive interrupted by a crash or shutdown
+        File[] partial = directory.listFiles((dir, name) -> name.endsWith(SegmentArchive.SUFFIX + ".tmp"));
+        if (partial != null) {
+            for (File file : partial) {
+                file.delete();
+            }
+        }
+
+        // A segment that has also been archived (a crash between the two)
+        File[] archived = directory.listFiles((dir, name) -> name.endsWith(SUFFIX)
+                && archiveFile(new File(dir, name)).exists());
+        if (archived != null) {
+            for (File file : archived) {
+                file.delete();
+            }
+        }
+
+        File[] segments = listSegments(directory);
+
+        lastSequence = 0;
+        if (segments.length > 0) {
+            File last = segments[segments.length - 1];
+            lastSequence = firstSequenceOf(last) - 1;
+            if (last.getName().endsWith(SegmentArchive.SUFFIX)) {
+                lastSequence = Math.max(lastSequence, SegmentArchive.open(last).getLastSequence());
+            } else {
+                writer = HistoryWriter.append(last);
+                currentSegment = last;
+                lastSequence = Math.max(lastSequence, writer.getLastSequence());
+            }
+        }
+
+        open = true;
+        if (archiving) {
+            archiveThread = new Thread(this::archiveClosedSegments, "History-Archiver");
+            archiveThread.setDaemon(true);
+            archiveThread.setPriority(Thread.MIN_PRIORITY);
+            archiveThread.start();
+        }
+    }
+
+    /**
+     * Append a record (see HistoryWriter.write) and flush it, starting a new
+     * segment first if the current one is full. If the write fails the segment
+     * is reopened, which cuts off whatever part of the record reached the file,
+     * so later records are not written after a torn one.
+     */
+    public synchronized void write(HistoryRecord record, int userId) throws IOException {
+        if (writer != null && writer.size() >= segmentBytes) {
+            HistoryWriter full = writer;
+            writer = null;
+            currentSegment = null;
+            full.close();
+            synchronized (archiveSignal) {
+                archiveSignal.notifyAll();
+            }
+        }
+        if (writer == null) {
+            currentSegment = segmentFile(record.getSequence());
+            writer = HistoryWriter.append(currentSegment);
+        }
+        try {
+            writer.write(record, userId);
+            writer.flush();
+        } catch (IOException e) {
+            reopen();
+            throw e;
+        }
+        lastSequence = Math.max(lastSequence, record.getSequence()); // Shards may save out of order
+    }
+
+    /**
+     * Drop the writer after a failed write and continue the segment from its
+     * last complete record. If that fails too, the next record starts a new segment.
+     */
+    private void reopen() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // Whatever close() could not flush is lost; append() below trims the file to whole records
+        }
+        writer = null;
+        try {
+            writer = HistoryWriter.append(currentSegment);
+            lastSequence = Math.max(lastSequence, writer.getLastSequence());
+        } catch (IOException e) {
+            System.err.println("Error reopening " + currentSegment.getName() + ": " + e.getMessage());
+            currentSegment = null;
+        }
+    }
+
+    /**
+     * Highest sequence number in the history, 0 if none
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Sequence numbers above the given one that the history holds. Records are
+     * saved in delivery order, which with several shards is not quite sequence
+     * order, so the segment before the first one that can hold such records is
+     * read as well.
+     */
+    public synchronized Set<Long> getSequencesAfter(long sequence) throws IOException {
+        Set<Long> sequences = new HashSet<>();
+        File[] segments = listSegments(directory);
+        for (int i = firstSegmentAfter(segments, sequence); i < segments.length; i++) {
+            try (HistoryReader in = openSegment(segments[i], sequence + 1)) {
+                HistoryRecord record;
+                while ((record = in.next()) != null) {
+                    if (record.getSequence() > sequence) {
+                        sequences.add(record.getSequence());
+                    }
+                }
+            }
+        }
+        return sequences;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        synchronized (archiveSignal) {
+            archiveSignal.notifyAll(); // The archiver gives up its current archive and exits
+        }
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Segments and archives of a history directory in sequence order. Where a
+     * segment has also been archived only the archive is listed.
+     */
+    public static File[] listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX) || name.endsWith(SegmentArchive.SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        // Zero-padded names sort by first sequence number, and a segment before its archive
+        Arrays.sort(files);
+        List<File> segments = new ArrayList<>(files.length);
+        for (File file : files) {
+            int last = segments.size() - 1;
+            if (last >= 0 && firstSequenceOf(segments.get(last)) == firstSequenceOf(file)) {
+                segments.set(last, file);
+            } else {
+                segments.add(file);
+            }
+        }
+        return segments.toArray(new File[0]);
+    }
+
+    /**
+     * Index of the first listed segment that can hold records after the given
+     * sequence number. Records are saved in delivery order, which with several
+     * shards is not quite sequence order, so this is the segment before the
+     * last one that starts at or before the sequence number.
+     */
+    public static int firstSegmentAfter(File[] segments, long sequence) {
+        int first = segments.length - 1;
+        while (first > 0 && firstSequenceOf(segments[first]) > sequence) {
+            first--;
+        }
+        return Math.max(0, first - 1);
+    }
+
+    /**
+     * Open a segment or archive for reading. A segment archived since it was
+     * listed is read from its archive instead.
+     */
+    public static HistoryReader openSegment(File segment) throws IOException {
+        return openSegment(segment, Long.MIN_VALUE);
+    }
+
+    /**
+     * Open a segment or archive for reading from about the given sequence number.
+     * An archive starts at the block that holds it, skipping the blocks before;
+     * a plain segment is delta-encoded and is read from the start. Either way,
+     * records before the sequence number may be returned.
+     */
+    public static HistoryReader openSegment(File segment, long fromSequence) throws IOException {
+        if (segment.getName().endsWith(SegmentArchive.SUFFIX)) {
+            return HistoryReader.forArchive(SegmentArchive.open(segment).openFrom(fromSequence));
+        }
+        try {
+            return new HistoryReader(new FileInputStream(segment));
+        } catch (FileNotFoundException e) {
+            File archive = archiveFile(segment);
+            if (!archive.exists()) {
+                throw e;
+            }
+            return openSegment(archive, fromSequence);
+        }
+    }
+
+    /**
+     * Archiver thread: compress every closed segment, then wait for the next one to close
+     */
+    private void archiveClosedSegments() {
+        while (open) {
+            File[] segments;
+            File current;
+            synchronized (this) {
+                segments = listSegments(directory);
+                current = currentSegment;
+            }
+            for (File segment : segments) {
+                if (!open) {
+                    return;
+                }
+                if (segment.getName().endsWith(SUFFIX) && !segment.equals(current)) {
+                    try {
+                        archive(segment);
+                    } catch (IOException e) {
+                        System.err.println("Error archiving " + segment.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+
+            synchronized (archiveSignal) {
+                try {
+                    if (open) {
+                        archiveSignal.wait(ARCHIVE_CHECK_MS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compress a closed segment into an archive and delete the segment. Each
+     * record is stored as a self-contained entry (HistoryWriter.encodeEntry),
+     * so every archive block can be decoded on its own.
+     */
+    private void archive(File segment) throws IOException {
+        File target = archiveFile(segment);
+        long before = segment.length();
+        SegmentArchive.Writer archive = new SegmentArchive.Writer(target, ARCHIVE_LABEL);
+        try (HistoryReader in = new HistoryReader(new FileInputStream(segment))) {
+            HistoryRecord record;
+            while ((record = in.next()) != null) {
+                if (!open) {
+                    archive.abort();
+                    return;
+                }
+                archive.add(record.getSequence(), HistoryWriter.encodeEntry(record));
+            }
+        } catch (IOException e) {
+            archive.abort();
+            throw e;
+        }
+
+        long after;
+        try {
+            after = archive.close();
+        } catch (IOException e) {
+            archive.abort();
+            throw e;
+        }
+        // From here readers see the archive; one that listed the segment earlier falls back to it
+        synchronized (this) {
+            segment.delete();
+        }
+        System.out.println("Archived history " + segment.getName() + ": " + before + " -> " + after + " bytes");
+    }
+
+    private File segmentFile(long firstSequence) {
+        return new File(directory, String.format("%020d%s", firstSequence, SUFFIX));
+    }
+
+    private static File archiveFile(File segment) {
+        String name = segment.getName();
+        return new File(segment.getParentFile(), name.substring(0, name.length() - SUFFIX.length()) + SegmentArchive.SUFFIX);
+    }
+
+    private static long firstSequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,232 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming encoder for the binary chat history format.
+ *
+ * A history file is a header (int magic, byte version) followed by entries,
+ * each starting with a tag byte:
+ *   SENDER: varint id, varint length, UTF-8 name
+ *   RECORD: byte type, zigzag varlong sequence delta, zigzag varlong timestamp delta,
+ *           varint sender id (0 for none), varint room, varint length, UTF-8 text
+ * Senders are interned: a name is written once, in a SENDER entry before its
+ * first record, and records refer to it by id. Sequence numbers and timestamps
+ * are stored as the difference from the previous record, which is usually one
+ * or two bytes. Readers can skip a record's text without decoding it.
+ *
+ * History archives (see HistoryStore) hold the same entries, but each record
+ * is self-contained: its sender is defined again as id 1 and its sequence
+ * number and timestamp are differences from 0.
+ */
+public class HistoryWriter implements Closeable {
+    static final int MAGIC = 0x43485331; // "CHS1"
+    static final int VERSION = 1;
+    static final int TAG_SENDER = 1;
+    static final int TAG_RECORD = 2;
+    static final int MAX_FIELD_BYTES = 1 << 20; // Longest name or text, as for write-ahead log records
+
+    private final DataOutputStream out;
+    private final long startSize; // Bytes already in the file when this writer took it over
+    private final SimpleHashMap<String, Integer> senderIds;
+    private final List<String> senderNames; // Index sender id - 1
+    private final IntIntMap userSenderIds; // Server user id -> sender id, so known users skip the name lookup
+    private final ByteArrayOutputStream entryBuffer; // Entries of the record being written
+    private final DataOutputStream entry;
+    private int nextSenderId;
+    private long previousSequence;
+    private long previousTimestamp;
+
+    /**
+     * Start a new history stream
+     */
+    public HistoryWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.startSize = 0;
+        this.senderIds = new SimpleHashMap<>();
+        this.senderNames = new ArrayList<>();
+        this.userSenderIds = new IntIntMap();
+        this.entryBuffer = new ByteArrayOutputStream(256);
+        this.entry = new DataOutputStream(entryBuffer);
+        this.nextSenderId = 1;
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+
+    /**
+     * Continue a stream another writer left off, given the state its reader ended in
+     */
+    private HistoryWriter(OutputStream out, HistoryReader state) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.startSize = state.getPosition();
+        this.senderIds = new SimpleHashMap<>();
+        this.userSenderIds = new IntIntMap();
+        this.entryBuffer = new ByteArrayOutputStream(256);
+        this.entry = new DataOutputStream(entryBuffer);
+        List<String> senders = state.getSenders();
+        this.senderNames = senders;
+        for (int i = 0; i < senders.size(); i++) {
+            senderIds.put(senders.get(i), i + 1);
+        }
+        this.nextSenderId = senders.size() + 1;
+        this.previousSequence = state.getLastSequence();
+        this.previousTimestamp = state.getLastTimestamp();
+    }
+
+    /**
+     * Open a history file for appending, creating it if needed. An existing file
+     * is read through once to pick up its sender dictionary, and a record torn by
+     * a crash at its end is cut off.
+     */
+    public static HistoryWriter append(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return new HistoryWriter(new FileOutputStream(file));
+        }
+
+        HistoryReader reader = new HistoryReader(new FileInputStream(file));
+        try {
+            reader.skipToEnd();
+        } finally {
+            reader.close();
+        }
+        if (reader.getPosition() < file.length()) {
+            System.err.println("History: discarding " + (file.length() - reader.getPosition())
+                    + " byte(s) of torn record at the end of " + file.getName());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(reader.getPosition());
+            }
+        }
+        return new HistoryWriter(new FileOutputStream(file, true), reader);
+    }
+
+    /**
+     * Encode a record, first defining its sender if this stream has not seen them yet
+     */
+    public void write(HistoryRecord record) throws IOException {
+        write(record, UsernameTable.NO_USER);
+    }
+
+    /**
+     * Encode a record whose sender has the given UsernameTable id. After the
+     * user's first record the sender id is found by the user id, without hashing
+     * the name. User ids are reused once freed, so the cached sender's name is
+     * compared first (usually the same String, so without reading it).
+     *
+     * The record and any SENDER entry it needs are encoded first and handed to
+     * the stream in one write, so a failed write never leaves half a record
+     * buffered in front of the next one. The file may still end in a torn
+     * record; reopen it with append() to cut that off.
+     */
+    public void write(HistoryRecord record, int userId) throws IOException {
+        String sender = record.getSender();
+        int senderId = sender != null && userId != UsernameTable.NO_USER ? userSenderIds.get(userId, 0) : 0;
+        if (senderId != 0 && !sender.equals(senderNames.get(senderId - 1))) {
+            senderId = 0; // The user id has since been given to someone else
+        }
+        boolean newSender = false;
+        entryBuffer.reset();
+        if (senderId == 0 && sender != null) {
+            Integer id = senderIds.get(sender);
+            if (id == null) {
+                id = nextSenderId;
+                newSender = true;
+                writeSender(entry, id, sender);
+            }
+            senderId = id;
+        }
+        writeRecord(entry, record, senderId, previousSequence, previousTimestamp);
+
+        entryBuffer.writeTo(out);
+        if (newSender) {
+            nextSenderId++;
+            senderIds.put(sender, senderId);
+            senderNames.add(sender);
+        }
+        if (sender != null && userId != UsernameTable.NO_USER) {
+            userSenderIds.put(userId, senderId);
+        }
+        previousSequence = record.getSequence();
+        previousTimestamp = record.getTimestamp();
+    }
+
+    /**
+     * Encode a record as a self-contained entry, as stored in history archives
+     */
+    static byte[] encodeEntry(HistoryRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + record.getText().length());
+        DataOutputStream entry = new DataOutputStream(bytes);
+        int senderId = 0;
+        if (record.getSender() != null) {
+            senderId = 1;
+            writeSender(entry, senderId, record.getSender());
+        }
+        writeRecord(entry, record, senderId, 0, 0);
+        return bytes.toByteArray();
+    }
+
+    private static void writeSender(DataOutputStream out, int id, String sender) throws IOException {
+        byte[] name = sender.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_FIELD_BYTES) {
+            throw new IOException("Sender name too long for history (" + name.length + " bytes)");
+        }
+        out.writeByte(TAG_SENDER);
+        writeVarLong(out, id);
+        writeVarLong(out, name.length);
+        out.write(name);
+    }
+
+    private static void writeRecord(DataOutputStream out, HistoryRecord record, int senderId,
+                                    long previousSequence, long previousTimestamp) throws IOException {
+        byte[] text = record.getText().getBytes(StandardCharsets.UTF_8);
+        if (text.length > MAX_FIELD_BYTES) {
+            throw new IOException("Message too long for history (" + text.length + " bytes)");
+        }
+        out.writeByte(TAG_RECORD);
+        out.writeByte(record.getType().ordinal());
+        writeVarLong(out, zigzag(record.getSequence() - previousSequence));
+        writeVarLong(out, zigzag(record.getTimestamp() - previousTimestamp));
+        writeVarLong(out, senderId);
+        writeVarLong(out, record.getRoom());
+        writeVarLong(out, text.length);
+        out.write(text);
+    }
+
+    /**
+     * Bytes in the file so far, including what is still buffered
+     */
+    public long size() {
+        return startSize + out.size();
+    }
+
+    /**
+     * Sequence number of the last record written, or of the file being appended to
+     */
+    public long getLastSequence() {
+        return previousSequence;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Seven bits per byte, low bits first, high bit set on all but the last byte
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
\ No newline at end of file
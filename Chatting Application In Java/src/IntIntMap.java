@@ -0,0 +1,215 @@
+import java.util.Arrays;
+
+/**
+ * Hash map from int keys to int values, laid out like IntObjectMap but with
+ * the values in an int[] too, so neither keys nor values are ever boxed.
+ * There is no null to report a missing key, so get takes the value to return
+ * instead.
+ */
+public class IntIntMap {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private int mask; // Capacity - 1, capacity is a power of two
+
+    public IntIntMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntIntMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Spread the key's bits so consecutive ids don't fill one run of slots
+     */
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Slot holding the key, or -1
+     */
+    private int find(int key) {
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Put a key-value pair into the map
+     */
+    public synchronized void put(int key, int value) {
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        insert(i, key, value);
+    }
+
+    /**
+     * Add delta to the key's value (0 if absent) and return the new value
+     */
+    public synchronized int increment(int key, int delta) {
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                values[i] += delta;
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        insert(i, key, delta);
+        return delta;
+    }
+
+    private void insert(int i, int key, int value) {
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        size++;
+
+        // Resize if needed
+        if (size > keys.length * LOAD_FACTOR) {
+            resize();
+        }
+    }
+
+    /**
+     * Get value by key, or defaultValue if the key is absent
+     */
+    public synchronized int get(int key, int defaultValue) {
+        int i = find(key);
+        return i >= 0 ? values[i] : defaultValue;
+    }
+
+    /**
+     * Remove a key-value pair. Returns whether the key was present.
+     */
+    public synchronized boolean remove(int key) {
+        int i = find(key);
+        if (i < 0) {
+            return false;
+        }
+
+        // Shift later entries of the probe run back, as in IntObjectMap
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (used[j]) {
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        used[hole] = false;
+        size--;
+        return true;
+    }
+
+    /**
+     * Check if key exists
+     */
+    public synchronized boolean containsKey(int key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Get all keys
+     */
+    public synchronized int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get all values, in the same order as keys()
+     */
+    public synchronized int[] values() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                result[n++] = values[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get size
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Check if empty
+     */
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Clear all entries
+     */
+    public synchronized void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * Double the table and re-insert every entry
+     */
+    private void resize() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(oldKeys.length * 2);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int j = slot(oldKeys[i]);
+                while (used[j]) {
+                    j = (j + 1) & mask;
+                }
+                used[j] = true;
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
\ No newline at end of file
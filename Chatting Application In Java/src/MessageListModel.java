@@ -0,0 +1,76 @@
+import javax.swing.AbstractListModel;
+import java.util.List;
+
+/**
+ * List model for the chat message view.
+ * Messages live in a CompactHistoryStore outside the Java heap and are only
+ * decoded when the list asks for a visible row, so memory use and repaint
+ * cost do not grow with the number of messages in the session. A search
+ * index over the same messages is kept up to date as they are added.
+ * Like DefaultListModel, it must only be changed on the Swing event dispatch thread.
+ */
+public class MessageListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final CompactHistoryStore store;
+    private final MessageSearchIndex searchIndex;
+
+    public MessageListModel() {
+        this.store = new CompactHistoryStore();
+        this.searchIndex = new MessageSearchIndex();
+    }
+
+    @Override
+    public int getSize() {
+        return store.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return store.get(index);
+    }
+
+    /**
+     * Add one message at the end of the list
+     */
+    public void add(String message) {
+        addAll(List.of(message));
+    }
+
+    /**
+     * Add messages at the end of the list with a single change event
+     */
+    public void addAll(List<String> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        int first = store.size();
+        for (String message : messages) {
+            store.append(message);
+            searchIndex.add(message);
+        }
+        fireIntervalAdded(this, first, store.size() - 1);
+    }
+
+    /**
+     * Get the store holding the messages (safe to read from other threads)
+     */
+    public CompactHistoryStore getStore() {
+        return store;
+    }
+
+    /**
+     * Get the search index over the stored messages (safe to read from other threads)
+     */
+    public MessageSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Release the message store
+     */
+    public void close() {
+        store.close();
+    }
+}
\ No newline at end of file
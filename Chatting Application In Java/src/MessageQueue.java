@@ -1,96 +1,385 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * FIFO queue implementation for message handling.
  * Thread-safe implementation for concurrent access.
+ * Supports configurable overflow policies and high/low watermark events
+ * so producers can shed load instead of blocking forever on a full queue.
+ * Messages are kept in priority lanes (system, control, user); order is
+ * FIFO within a lane and lanes are served by weighted round robin.
+ * The maximum size bounds the queue as a whole. A lane can be given a
+ * reserved share of it (setReservedCapacity) that the other lanes cannot
+ * fill, so a queue full of user messages still has room for a server notice.
  */
-public class MessageQueue {
-    private Node head; // Head of the linked list
-    private Node tail; // Tail of the linked list
-    private int size; // Current size of the queue
-    private int maxSize; // Maximum size of the queue
+public class MessageQueue<E> {
+    /**
+     * What enqueue() does when the queue is full
+     */
+    public enum OverflowPolicy {
+        BLOCK,       // Wait until there is space
+        DROP_NEWEST, // Discard the incoming message
+        DROP_OLDEST, // Discard the message at the head to make room
+        REJECT       // Refuse the message so the caller can report an error
+    }
+
+    /**
+     * Priority lanes, highest priority first
+     */
+    public enum Lane {
+        SYSTEM,  // Server notices such as joins and leaves
+        CONTROL, // Protocol updates such as the user list
+        USER     // Chat messages
+    }
+
+    /**
+     * Listener for queue depth crossing the configured watermarks
+     */
+    public interface WatermarkListener {
+        void onHighWatermark(int size);
+        void onLowWatermark(int size);
+    }
+
+    // Watermark transitions reported by the synchronized internals
+    private static final int NO_EVENT = 0;
+    private static final int HIGH_EVENT = 1;
+    private static final int LOW_EVENT = 2;
+
+    private static final Lane[] LANES = Lane.values();
+    private static final int[] DEFAULT_WEIGHTS = {8, 4, 1}; // Dequeues per round for SYSTEM, CONTROL, USER
+
+    private Node<E>[] heads; // Head of each lane's linked list
+    private Node<E>[] tails; // Tail of each lane's linked list
+    private int[] laneSizes; // Current size of each lane
+    private int[] weights; // Dequeues each lane gets per round
+    private int[] credits; // Dequeues each lane has left in the current round
+    private int size; // Current size of the queue across all lanes
+    private int maxSize; // Maximum size of the queue across all lanes
+    private int[] reserved; // Slots of maxSize that only each lane may fill
+    private OverflowPolicy overflowPolicy; // Behaviour of enqueue() when full
+    private long droppedCount; // Messages dropped or refused because the queue was full
+    private int highWatermark; // Size at which the high watermark event fires
+    private int lowWatermark; // Size at which the low watermark event fires again
+    private boolean aboveHighWatermark;
+    private WatermarkListener watermarkListener;
 
     // Node class representing each element in the linked list
-    private static class Node {
-        String data;
-        Node next;
+    private static class Node<E> {
+        E data;
+        Node<E> next;
 
-        Node(String data) {
+        Node(E data) {
             this.data = data;
             this.next = null;
         }
     }
 
     public MessageQueue() {
-        this.head = null;
-        this.tail = null;
-        this.size = 0;
-        this.maxSize = 1000; // Default max size
+        this(1000); // Default max size
     }
 
     public MessageQueue(int maxSize) {
-        this.head = null;
-        this.tail = null;
+        this(maxSize, OverflowPolicy.BLOCK);
+    }
+
+    @SuppressWarnings("unchecked")
+    public MessageQueue(int maxSize, OverflowPolicy overflowPolicy) {
+        this.heads = (Node<E>[]) new Node<?>[LANES.length];
+        this.tails = (Node<E>[]) new Node<?>[LANES.length];
+        this.laneSizes = new int[LANES.length];
+        this.reserved = new int[LANES.length];
+        this.weights = DEFAULT_WEIGHTS.clone();
+        this.credits = DEFAULT_WEIGHTS.clone();
         this.size = 0;
         this.maxSize = maxSize;
+        this.overflowPolicy = overflowPolicy;
+        this.highWatermark = Integer.MAX_VALUE; // Watermarks disabled by default
+        this.lowWatermark = 0;
     }
 
     /**
-     * Add a message to the queue (enqueue)
+     * Set the policy applied by enqueue() when the queue is full
      */
-    public synchronized void enqueue(String message) {
-        while (size >= maxSize) {
-            try {
-                wait(); // Wait if queue is full
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return;
+    public synchronized void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        notifyAll(); // Blocked producers re-check under the new policy
+    }
+
+    /**
+     * Get the policy applied by enqueue() when the queue is full
+     */
+    public synchronized OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set how many messages each lane may dequeue per round while other lanes are waiting.
+     * A saturated lane can delay another lane by at most the sum of the other weights.
+     */
+    public synchronized void setLaneWeights(int system, int control, int user) {
+        if (system < 1 || control < 1 || user < 1) {
+            throw new IllegalArgumentException("Lane weights must be at least 1");
+        }
+        weights = new int[]{system, control, user};
+        credits = weights.clone();
+    }
+
+    /**
+     * Keep slots of the maximum size free for one lane: the other lanes are full
+     * once only the lane's unused reservation is left. Reservations must leave
+     * room for the other lanes.
+     */
+    public synchronized void setReservedCapacity(Lane lane, int slots) {
+        int others = 0;
+        for (int l = 0; l < LANES.length; l++) {
+            if (l != lane.ordinal()) {
+                others += reserved[l];
             }
         }
+        if (slots < 0 || others + slots >= maxSize) {
+            throw new IllegalArgumentException("Reservations must total less than the maximum size");
+        }
+        reserved[lane.ordinal()] = slots;
+    }
 
-        Node newNode = new Node(message);
-        if (tail == null) {
-            // Queue is empty
-            head = newNode;
-            tail = newNode;
-        } else {
-            // Append the new node to the end
-            tail.next = newNode;
-            tail = newNode;
+    /**
+     * Report when the size reaches high and when it falls back to low.
+     * Events are delivered on the producer/consumer thread, outside the queue lock,
+     * so listeners should not keep state from them: use isAboveHighWatermark().
+     */
+    public synchronized void setWatermarks(int high, int low, WatermarkListener listener) {
+        if (low < 0 || high <= low) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high");
         }
-        size++;
-        notifyAll(); // Notify waiting consumers
+        this.highWatermark = high;
+        this.lowWatermark = low;
+        this.watermarkListener = listener;
+        this.aboveHighWatermark = false;
+    }
+
+    /**
+     * Add a message to the user lane (enqueue), applying the overflow policy when full.
+     * Returns false if the message was dropped or rejected.
+     */
+    public boolean enqueue(E message) {
+        return enqueue(message, Lane.USER);
+    }
+
+    /**
+     * Add a message to a lane, applying the overflow policy when the lane is full.
+     * Returns false if the message was dropped or rejected.
+     */
+    public boolean enqueue(E message, Lane lane) {
+        int l = lane.ordinal();
+        int event;
+        boolean accepted;
+        synchronized (this) {
+            while (isFull(l) && overflowPolicy == OverflowPolicy.BLOCK) {
+                try {
+                    wait(); // Wait if lane is full
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            if (isFull(l)) {
+                // Only the lane's own oldest message makes room; one full of other lanes' stays full
+                if (overflowPolicy == OverflowPolicy.DROP_OLDEST && laneSizes[l] > 0) {
+                    removeHead(l);
+                }
+                droppedCount++;
+            }
+            accepted = !isFull(l);
+            event = accepted ? append(message, l) : NO_EVENT;
+        }
+        fireWatermarkEvent(event);
+        return accepted;
+    }
+
+    /**
+     * Add a message to the user lane only if there is space right now. Never blocks.
+     */
+    public boolean tryEnqueue(E message) {
+        return tryEnqueue(message, Lane.USER);
+    }
+
+    /**
+     * Add a message to a lane only if there is space right now. Never blocks.
+     */
+    public boolean tryEnqueue(E message, Lane lane) {
+        int l = lane.ordinal();
+        int event;
+        synchronized (this) {
+            if (isFull(l)) {
+                droppedCount++;
+                return false;
+            }
+            event = append(message, l);
+        }
+        fireWatermarkEvent(event);
+        return true;
+    }
+
+    /**
+     * Add a message to the user lane, waiting up to the timeout for space.
+     * Returns false if the lane was still full when the timeout expired.
+     */
+    public boolean offer(E message, long timeout, TimeUnit unit) {
+        return offer(message, Lane.USER, timeout, unit);
+    }
+
+    /**
+     * Add a message to a lane, waiting up to the timeout for space.
+     * Returns false if the lane was still full when the timeout expired.
+     */
+    public boolean offer(E message, Lane lane, long timeout, TimeUnit unit) {
+        int l = lane.ordinal();
+        int event;
+        synchronized (this) {
+            long remaining = unit.toNanos(timeout);
+            long deadline = System.nanoTime() + remaining;
+            while (isFull(l)) {
+                if (remaining <= 0) {
+                    droppedCount++;
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+            event = append(message, l);
+        }
+        fireWatermarkEvent(event);
+        return true;
+    }
+
+    /**
+     * Check if a lane has room for a message right now
+     */
+    public synchronized boolean hasRoom(Lane lane) {
+        return !isFull(lane.ordinal());
     }
 
     /**
-     * Remove and return the first message from the queue (dequeue)
+     * Wait up to the timeout for a lane to have room, without adding anything.
+     * Returns false if it was still full when the timeout expired.
      */
-    public synchronized String dequeue() {
-        while (size == 0) {
+    public synchronized boolean awaitRoom(Lane lane, long timeout, TimeUnit unit) {
+        int l = lane.ordinal();
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (isFull(l)) {
+            if (remaining <= 0) {
+                return false;
+            }
             try {
-                wait(); // Wait if queue is empty
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
-                return null;
+                return false;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        return true;
+    }
+
+    /**
+     * Remove and return the next message (dequeue), choosing the lane by weighted round robin
+     */
+    public E dequeue() {
+        int event;
+        E message;
+        synchronized (this) {
+            while (size == 0) {
+                try {
+                    wait(); // Wait if queue is empty
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
             }
+
+            int l = nextLane();
+            credits[l]--;
+            message = removeHead(l);
+            event = checkLowWatermark();
+            notifyAll(); // Notify waiting producers
         }
+        fireWatermarkEvent(event);
+        return message;
+    }
 
-        String message = head.data;
-        head = head.next;
-        if (head == null) {
-            tail = null; // Queue is now empty
+    /**
+     * Remove and return the next message, waiting up to the timeout for one to arrive.
+     * Returns null if the queue was still empty when the timeout expired.
+     */
+    public E poll(long timeout, TimeUnit unit) {
+        int event;
+        E message;
+        synchronized (this) {
+            long remaining = unit.toNanos(timeout);
+            long deadline = System.nanoTime() + remaining;
+            while (size == 0) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+
+            int l = nextLane();
+            credits[l]--;
+            message = removeHead(l);
+            event = checkLowWatermark();
+            notifyAll(); // Notify waiting producers
         }
-        size--;
-        notifyAll(); // Notify waiting producers
+        fireWatermarkEvent(event);
         return message;
     }
 
     /**
-     * Peek at the first message without removing it
+     * Move up to max queued messages into the list without waiting, in the order
+     * dequeue would return them. Returns the number moved.
+     */
+    public int drainTo(Collection<? super E> target, int max) {
+        int event;
+        int moved = 0;
+        synchronized (this) {
+            while (size > 0 && moved < max) {
+                int l = nextLane();
+                credits[l]--;
+                target.add(removeHead(l));
+                moved++;
+            }
+            event = checkLowWatermark();
+            if (moved > 0) {
+                notifyAll(); // Notify waiting producers
+            }
+        }
+        fireWatermarkEvent(event);
+        return moved;
+    }
+
+    /**
+     * Peek at the message the next dequeue would return without removing it
      */
-    public synchronized String peek() {
+    public synchronized E peek() {
         if (size == 0) {
             return null;
         }
-        return head.data;
+        return heads[nextLane()].data;
     }
 
     /**
@@ -107,27 +396,164 @@ public class MessageQueue {
         return size;
     }
 
+    /**
+     * Get current size of one lane
+     */
+    public synchronized int size(Lane lane) {
+        return laneSizes[lane.ordinal()];
+    }
+
+    /**
+     * Get the number of messages dropped or refused because the queue was full
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Check if the queue is between crossing the high watermark and draining to the low one
+     */
+    public synchronized boolean isAboveHighWatermark() {
+        return aboveHighWatermark;
+    }
+
     /**
      * Clear all messages from the queue
      */
-    public synchronized void clear() {
-        head = null;
-        tail = null;
-        size = 0;
-        notifyAll();
+    public void clear() {
+        int event;
+        synchronized (this) {
+            for (int l = 0; l < LANES.length; l++) {
+                heads[l] = null;
+                tails[l] = null;
+                laneSizes[l] = 0;
+            }
+            size = 0;
+            credits = weights.clone();
+            event = checkLowWatermark();
+            notifyAll();
+        }
+        fireWatermarkEvent(event);
+    }
+
+    /**
+     * Get all messages as a list (for searching), highest priority lane first
+     */
+    public synchronized List<E> toList() {
+        List<E> list = new ArrayList<>(size);
+        for (int l = 0; l < LANES.length; l++) {
+            Node<E> current = heads[l];
+            while (current != null) {
+                list.add(current.data);
+                current = current.next;
+            }
+        }
+        return list;
     }
 
     /**
-     * Get all messages as an array (for searching)
+     * Pick the lane the next dequeue is served from. Caller holds the lock and has checked size > 0.
+     * The highest priority non-empty lane with credit left wins; when every waiting
+     * lane has used its credit the round ends and all credits are refilled.
      */
-    public synchronized String[] toArray() {
-        String[] array = new String[size];
-        Node current = head;
-        int index = 0;
-        while (current != null) {
-            array[index++] = current.data;
-            current = current.next;
+    private int nextLane() {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            for (int l = 0; l < LANES.length; l++) {
+                if (laneSizes[l] > 0 && credits[l] > 0) {
+                    return l;
+                }
+            }
+            credits = weights.clone();
+        }
+        throw new IllegalStateException("No lane has messages");
+    }
+
+    /**
+     * Whether a lane has no room: the queue is full, or what is left is reserved
+     * for other lanes. Caller holds the lock.
+     */
+    private boolean isFull(int l) {
+        int free = maxSize - size;
+        for (int k = 0; k < LANES.length; k++) {
+            if (k != l && laneSizes[k] < reserved[k]) {
+                free -= reserved[k] - laneSizes[k];
+            }
+        }
+        return free <= 0;
+    }
+
+    /**
+     * Link a new node at a lane's tail. Caller holds the lock.
+     */
+    private int append(E message, int l) {
+        Node<E> newNode = new Node<>(message);
+        if (tails[l] == null) {
+            // Lane is empty
+            heads[l] = newNode;
+            tails[l] = newNode;
+        } else {
+            // Append the new node to the end
+            tails[l].next = newNode;
+            tails[l] = newNode;
+        }
+        laneSizes[l]++;
+        size++;
+        notifyAll(); // Notify waiting consumers
+
+        if (!aboveHighWatermark && size >= highWatermark) {
+            aboveHighWatermark = true;
+            return HIGH_EVENT;
+        }
+        return NO_EVENT;
+    }
+
+    /**
+     * Unlink a lane's head node. Caller holds the lock and has checked the lane is not empty.
+     */
+    private E removeHead(int l) {
+        Node<E> head = heads[l];
+        heads[l] = head.next;
+        if (heads[l] == null) {
+            tails[l] = null; // Lane is now empty
+        }
+        laneSizes[l]--;
+        size--;
+        return head.data;
+    }
+
+    /**
+     * Caller holds the lock
+     */
+    private int checkLowWatermark() {
+        if (aboveHighWatermark && size <= lowWatermark) {
+            aboveHighWatermark = false;
+            return LOW_EVENT;
+        }
+        return NO_EVENT;
+    }
+
+    private void fireWatermarkEvent(int event) {
+        if (event == NO_EVENT) {
+            return;
+        }
+
+        WatermarkListener listener;
+        int currentSize;
+        synchronized (this) {
+            // A later transition may have overtaken this one: report only the current state
+            if ((event == HIGH_EVENT) != aboveHighWatermark) {
+                return;
+            }
+            listener = watermarkListener;
+            currentSize = size;
+        }
+        if (listener == null) {
+            return;
+        }
+        if (event == HIGH_EVENT) {
+            listener.onHighWatermark(currentSize);
+        } else {
+            listener.onLowWatermark(currentSize);
         }
-        return array;
     }
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Incremental search index over chat messages.
+ * Messages are grouped into blocks of BLOCK_SIZE and each block keeps a small
+ * bit filter of the lowercase character trigrams it contains. A search only has
+ * to scan the blocks whose filter has every trigram of the keyword, and the
+ * index costs a fixed 16 bytes per message however long the messages are.
+ * Thread-safe: messages are added as they arrive while searches run in the background.
+ */
+public class MessageSearchIndex {
+    public static final int BLOCK_SIZE = 16; // Messages per filter
+    private static final int FILTER_WORDS = 32; // 2048 bits per block
+    private static final int FILTER_MASK = FILTER_WORDS * 64 - 1;
+
+    private long[] filters; // FILTER_WORDS longs per block, back to back
+    private int size; // Number of messages indexed
+
+    public MessageSearchIndex() {
+        this.filters = new long[FILTER_WORDS * 64];
+        this.size = 0;
+    }
+
+    /**
+     * Index the next message. Messages must be added in order, matching their store index.
+     */
+    public synchronized void add(String message) {
+        int base = (size / BLOCK_SIZE) * FILTER_WORDS;
+        if (base + FILTER_WORDS > filters.length) {
+            filters = Arrays.copyOf(filters, filters.length * 2);
+        }
+
+        String lower = message.toLowerCase(Locale.ROOT);
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            int bit = trigramBit(lower, i);
+            filters[base + (bit >>> 6)] |= 1L << bit;
+        }
+        size++;
+    }
+
+    /**
+     * Get the number of messages indexed
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Build the filter bits a block must contain to possibly match the keyword.
+     * Returns null if the keyword is too short to filter on.
+     */
+    public static long[] keywordMask(String keyword) {
+        String lower = keyword.toLowerCase(Locale.ROOT);
+        if (lower.length() < 3) {
+            return null;
+        }
+
+        long[] mask = new long[FILTER_WORDS];
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            int bit = trigramBit(lower, i);
+            mask[bit >>> 6] |= 1L << bit;
+        }
+        return mask;
+    }
+
+    /**
+     * Check if a block may contain a message matching the keyword mask.
+     * False means no message in the block matches; true means it has to be scanned.
+     */
+    public synchronized boolean mayContain(int block, long[] mask) {
+        if (mask == null) {
+            return true;
+        }
+
+        int base = block * FILTER_WORDS;
+        if (base >= filters.length) {
+            return false;
+        }
+        for (int w = 0; w < FILTER_WORDS; w++) {
+            if ((filters[base + w] & mask[w]) != mask[w]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int trigramBit(String s, int i) {
+        int h = (s.charAt(i) * 31 + s.charAt(i + 1)) * 31 + s.charAt(i + 2);
+        h ^= h >>> 7;
+        h *= 0x9E3779B1;
+        return (h >>> 16) & FILTER_MASK;
+    }
+}
\ No newline at end of file
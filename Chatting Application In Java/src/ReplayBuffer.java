@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size buffer of the most recent sequenced messages.
+ * Reconnecting clients are sent the messages after the last sequence number
+ * they saw instead of re-requesting the whole history.
+ * Messages may be added out of sequence order (one writer per shard).
+ */
+public class ReplayBuffer {
+    private final ChatMessage[] slots; // Indexed by sequence % capacity
+    private long highestSequence;
+
+    public ReplayBuffer(int capacity) {
+        this.slots = new ChatMessage[capacity];
+        this.highestSequence = -1;
+    }
+
+    /**
+     * Remember a message for replay
+     */
+    public synchronized void add(ChatMessage message) {
+        long sequence = message.getSequence();
+        // Drop stragglers older than everything the buffer can still hold
+        if (sequence <= highestSequence - slots.length) {
+            return;
+        }
+        slots[(int) (sequence % slots.length)] = message;
+        highestSequence = Math.max(highestSequence, sequence);
+    }
+
+    /**
+     * Get the buffered messages with a sequence number after the given one, in sequence order
+     */
+    public synchronized List<ChatMessage> since(long lastSequence) {
+        List<ChatMessage> messages = new ArrayList<>();
+        long from = Math.max(lastSequence + 1, oldestRetained());
+        for (long sequence = from; sequence <= highestSequence; sequence++) {
+            ChatMessage message = slots[(int) (sequence % slots.length)];
+            if (message != null && message.getSequence() == sequence) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Check if messages after the given sequence number have already been evicted
+     */
+    public synchronized boolean hasGap(long lastSequence) {
+        return lastSequence < highestSequence && lastSequence + 1 < oldestRetained();
+    }
+
+    /**
+     * Get the highest sequence number added so far, or -1 if none
+     */
+    public synchronized long getHighestSequence() {
+        return highestSequence;
+    }
+
+    private long oldestRetained() {
+        return Math.max(0, highestSequence - slots.length + 1);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,311 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block-compressed, read-only copy of a closed history segment (see HistoryStore).
+ * Records are grouped into blocks of about BLOCK_BYTES that are deflated
+ * independently, and an index holds each block's first sequence number, so a
+ * reader looking for a sequence number inflates only the blocks from there on.
+ *
+ * Layout: header (int magic, int version, UTF label), the compressed blocks,
+ * the index (int count, then per block: long firstSequence, long offset,
+ * int compressedLength, int rawLength) and a footer
+ * (long indexOffset, long records, long lastSequence, int magic).
+ * Records are stored as the caller encoded them; the label says what they are.
+ */
+public class SegmentArchive {
+    public static final String SUFFIX = ".cwz";
+    private static final int MAGIC = 0x43575A31; // "CWZ1"
+    private static final int VERSION = 1;
+    public static final int BLOCK_BYTES = 64 * 1024;
+    private static final int FOOTER_BYTES = 8 + 8 + 8 + 4;
+
+    private final File file;
+    private final String label;
+    private final long records;
+    private final long lastSequence;
+    private final long[] firstSequences;
+    private final long[] offsets;
+    private final int[] compressedLengths;
+    private final int[] rawLengths;
+
+    private SegmentArchive(File file, String label, long records, long lastSequence, long[] firstSequences,
+                           long[] offsets, int[] compressedLengths, int[] rawLengths) {
+        this.file = file;
+        this.label = label;
+        this.records = records;
+        this.lastSequence = lastSequence;
+        this.firstSequences = firstSequences;
+        this.offsets = offsets;
+        this.compressedLengths = compressedLengths;
+        this.rawLengths = rawLengths;
+    }
+
+    /**
+     * Read an archive's header, footer and block index
+     */
+    public static SegmentArchive open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < FOOTER_BYTES || in.readInt() != MAGIC) {
+                throw new IOException("Not a segment archive: " + file.getName());
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported archive version " + version);
+            }
+            String label = in.readUTF();
+
+            in.seek(in.length() - FOOTER_BYTES);
+            long indexOffset = in.readLong();
+            long records = in.readLong();
+            long lastSequence = in.readLong();
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Incomplete segment archive: " + file.getName());
+            }
+
+            in.seek(indexOffset);
+            int count = in.readInt();
+            long[] firstSequences = new long[count];
+            long[] offsets = new long[count];
+            int[] compressedLengths = new int[count];
+            int[] rawLengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                firstSequences[i] = in.readLong();
+                offsets[i] = in.readLong();
+                compressedLengths[i] = in.readInt();
+                rawLengths[i] = in.readInt();
+            }
+            return new SegmentArchive(file, label, records, lastSequence, firstSequences, offsets,
+                    compressedLengths, rawLengths);
+        }
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getRecordCount() {
+        return records;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public int getBlockCount() {
+        return firstSequences.length;
+    }
+
+    /**
+     * Stream the records from the block that holds the given sequence number
+     * (or the first block) to the end of the archive, inflating one block at a time.
+     * Records may be slightly out of sequence order (see Writer.add), so the
+     * block before that one is read as well; callers skip what they don't need.
+     */
+    public InputStream openFrom(long sequence) throws IOException {
+        // Last block starting at or before the sequence number
+        int low = 0;
+        int high = firstSequences.length - 1;
+        int block = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (firstSequences[mid] <= sequence) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return new BlockInputStream(Math.max(0, block - 1));
+    }
+
+    /**
+     * Inflates blocks on demand, one after another
+     */
+    private class BlockInputStream extends InputStream {
+        private final RandomAccessFile in;
+        private final Inflater inflater;
+        private int nextBlock;
+        private byte[] buffer;
+        private int position;
+        private int limit;
+
+        BlockInputStream(int firstBlock) throws IOException {
+            this.in = new RandomAccessFile(file, "r");
+            this.inflater = new Inflater();
+            this.nextBlock = firstBlock;
+            this.buffer = new byte[0];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !nextBlock()) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && !nextBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (nextBlock >= firstSequences.length) {
+                return false;
+            }
+            byte[] compressed = new byte[compressedLengths[nextBlock]];
+            in.seek(offsets[nextBlock]);
+            in.readFully(compressed);
+            if (buffer.length < rawLengths[nextBlock]) {
+                buffer = new byte[rawLengths[nextBlock]];
+            }
+            inflater.reset();
+            inflater.setInput(compressed);
+            try {
+                limit = inflater.inflate(buffer, 0, rawLengths[nextBlock]);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block " + nextBlock + " in " + file.getName(), e);
+            }
+            if (limit != rawLengths[nextBlock]) {
+                throw new IOException("Short block " + nextBlock + " in " + file.getName());
+            }
+            position = 0;
+            nextBlock++;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+
+    /**
+     * Writes an archive to a temporary file and moves it into place when closed,
+     * so a reader never sees a half-written archive
+     */
+    public static class Writer {
+        private final File target;
+        private final File temp;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private final Deflater deflater;
+        private final ByteArrayOutputStream block;
+        private final ByteArrayOutputStream index;
+        private final DataOutputStream indexOut;
+        private final byte[] compressBuffer;
+        private long offset;
+        private int blocks;
+        private long blockFirstSequence;
+        private long records;
+        private long lastSequence;
+
+        public Writer(File target, String label) throws IOException {
+            this.target = target;
+            this.temp = new File(target.getPath() + ".tmp");
+            this.fileOut = new FileOutputStream(temp);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            this.deflater = new Deflater();
+            this.block = new ByteArrayOutputStream(BLOCK_BYTES + 1024);
+            this.index = new ByteArrayOutputStream();
+            this.indexOut = new DataOutputStream(index);
+            this.compressBuffer = new byte[8192];
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(label);
+            offset = out.size();
+        }
+
+        /**
+         * Add the next record. Records go in the order they were saved, which is
+         * sequence order give or take the shards' delivery skew.
+         */
+        public void add(long sequence, byte[] record) throws IOException {
+            if (block.size() == 0) {
+                blockFirstSequence = sequence;
+            }
+            block.write(record);
+            records++;
+            lastSequence = sequence;
+            if (block.size() >= BLOCK_BYTES) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (block.size() == 0) {
+                return;
+            }
+            byte[] raw = block.toByteArray();
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            int compressed = 0;
+            while (!deflater.finished()) {
+                int n = deflater.deflate(compressBuffer);
+                out.write(compressBuffer, 0, n);
+                compressed += n;
+            }
+            indexOut.writeLong(blockFirstSequence);
+            indexOut.writeLong(offset);
+            indexOut.writeInt(compressed);
+            indexOut.writeInt(raw.length);
+            offset += compressed;
+            blocks++;
+            block.reset();
+        }
+
+        /**
+         * Write the index and footer, force the archive to disk and move it into place.
+         * Returns the archive's size in bytes.
+         */
+        public long close() throws IOException {
+            try {
+                flushBlock();
+                long indexOffset = offset;
+                out.writeInt(blocks);
+                index.writeTo(out);
+                out.writeLong(indexOffset);
+                out.writeLong(records);
+                out.writeLong(lastSequence);
+                out.writeInt(MAGIC);
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                deflater.end();
+                out.close();
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return target.length();
+        }
+
+        /**
+         * Give up and delete the temporary file
+         */
+        public void abort() {
+            deflater.end();
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Deleted below anyway
+            }
+            temp.delete();
+        }
+    }
+}
\ No newline at end of file
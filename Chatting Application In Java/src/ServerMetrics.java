@@ -0,0 +1,154 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of server metrics: counters, gauges and latency histograms by name.
+ * Counters are LongAdders and histograms are lock-free, so hot paths can record
+ * from many threads without contention. Gauges are read only when a report is made.
+ */
+public class ServerMetrics {
+    private final Map<String, LongAdder> counters;
+    private final Map<String, LongSupplier> gauges;
+    private final Map<String, LatencyHistogram> histograms;
+    private final long startMillis;
+
+    public ServerMetrics() {
+        this.counters = new ConcurrentSkipListMap<>();
+        this.gauges = new ConcurrentSkipListMap<>();
+        this.histograms = new ConcurrentSkipListMap<>();
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Get or create a counter. Callers on hot paths should keep the returned adder.
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Get or create a latency histogram (values in nanoseconds)
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Register a value that is read when a report is made
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Get a counter or gauge value, or 0 if there is none by that name
+     */
+    public long getValue(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter != null) {
+            return counter.sum();
+        }
+        LongSupplier gauge = gauges.get(name);
+        return gauge != null ? gauge.getAsLong() : 0;
+    }
+
+    /**
+     * Full report, one metric per line
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("uptime: " + (System.currentTimeMillis() - startMillis) / 1000 + "s");
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            lines.add(gauge.getKey() + ": " + gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            lines.add(counter.getKey() + ": " + counter.getValue().sum());
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            lines.add(histogram.getKey() + ": " + histogram.getValue().summaryMillis());
+        }
+        return lines;
+    }
+
+    /**
+     * Compact single-line report of the gauges, counters and histogram p99s for the log
+     */
+    public String summaryLine() {
+        StringBuilder sb = new StringBuilder("metrics:");
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            sb.append(' ').append(gauge.getKey()).append('=').append(gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            sb.append(' ').append(counter.getKey()).append('=').append(counter.getValue().sum());
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            sb.append(' ').append(histogram.getKey()).append(".p99=")
+              .append(String.format("%.2fms", histogram.getValue().getPercentile(99) / 1e6));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Input stream that adds the bytes read to a counter
+     */
+    public static class CountingInputStream extends FilterInputStream {
+        private final LongAdder bytes;
+
+        public CountingInputStream(InputStream in, LongAdder bytes) {
+            super(in);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytes.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                bytes.add(n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Output stream that adds the bytes written to a counter
+     */
+    public static class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder bytes;
+
+        public CountingOutputStream(OutputStream out, LongAdder bytes) {
+            super(out);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes.increment();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            // FilterOutputStream would write one byte at a time
+            out.write(buffer, offset, length);
+            bytes.add(length);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,52 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket used for per-connection rate limiting.
+ * The bucket is stored as a single "theoretical arrival time" (GCRA form),
+ * so refilling and taking a token is one compare-and-set based on System.nanoTime().
+ */
+public class TokenBucket {
+    private final long nanosPerToken; // Time needed to refill one token
+    private final long tolerance; // How far ahead of now the arrival time may run (burst size)
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * Create a full bucket that refills at tokensPerSecond and holds up to burst tokens
+     */
+    public TokenBucket(double tokensPerSecond, int burst) {
+        if (tokensPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        this.nanosPerToken = Math.max(1L, (long) (1_000_000_000L / tokensPerSecond));
+        this.tolerance = nanosPerToken * (burst - 1);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take one token if available. Never blocks.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long arrival = theoreticalArrival.get();
+            // Tokens refill implicitly: an arrival time in the past means a full bucket
+            long base = arrival - now > 0 ? arrival : now;
+            if (base - now > tolerance) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, base + nanosPerToken)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Get the number of whole tokens currently available
+     */
+    public int availableTokens() {
+        long now = System.nanoTime();
+        long arrival = theoreticalArrival.get();
+        long ahead = arrival - now > 0 ? arrival - now : 0;
+        return (int) ((tolerance + nanosPerToken - ahead) / nanosPerToken);
+    }
+}
\ No newline at end of file
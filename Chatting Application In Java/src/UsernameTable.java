@@ -0,0 +1,88 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Interns usernames as small integer ids, so the id can stand in for the name
+ * in internal tables and on the message path, and names are only looked up
+ * where they come in or go out. Every connection using a name holds a
+ * reference to its id; when the last one is released the id is freed and
+ * given to the next new name, so the table only grows with the users online
+ * at once. An id may therefore name someone else later: anything that caches
+ * by id must check the name as well (see HistoryWriter).
+ */
+public class UsernameTable {
+    public static final int NO_USER = 0; // Ids start at 1
+
+    private final SimpleHashMap<String, Integer> ids;
+    private final List<String> names; // Index id - 1, null while the id is free
+    private int[] references; // Index id - 1
+    private final ArrayDeque<Integer> freeIds;
+
+    public UsernameTable() {
+        this.ids = new SimpleHashMap<>();
+        this.names = new ArrayList<>();
+        this.references = new int[16];
+        this.freeIds = new ArrayDeque<>();
+    }
+
+    /**
+     * Get the name's id and take a reference to it, assigning an id (a freed
+     * one if there is one) if the name has none. Pair with release().
+     */
+    public synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = freeIds.poll();
+            if (id != null) {
+                names.set(id - 1, name);
+            } else {
+                names.add(name);
+                id = names.size();
+                if (id > references.length) {
+                    references = Arrays.copyOf(references, references.length * 2);
+                }
+            }
+            ids.put(name, id);
+        }
+        references[id - 1]++;
+        return id;
+    }
+
+    /**
+     * Drop a reference taken by intern(), freeing the id once nobody holds it
+     */
+    public synchronized void release(int id) {
+        if (id <= 0 || id > names.size() || references[id - 1] == 0) {
+            throw new IllegalArgumentException("Id " + id + " is not in use");
+        }
+        if (--references[id - 1] == 0) {
+            ids.remove(names.get(id - 1));
+            names.set(id - 1, null);
+            freeIds.push(id);
+        }
+    }
+
+    /**
+     * Get the name's id, or NO_USER if nobody holds one for it
+     */
+    public synchronized int idOf(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : NO_USER;
+    }
+
+    /**
+     * Get the name for an id, or null if the id is not in use
+     */
+    public synchronized String nameOf(int id) {
+        return id > 0 && id <= names.size() ? names.get(id - 1) : null;
+    }
+
+    /**
+     * Get the number of names that hold an id
+     */
+    public synchronized int size() {
+        return names.size() - freeIds.size();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,541 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only log of every sequenced message, written when the
+ * server accepts the message and committed before it is delivered to anyone. On startup the log is scanned to recover
+ * the epoch, the last sequence number and the recent messages, so a restarted
+ * server carries on where it stopped and clients can resume across the restart.
+ *
+ * The log is a directory of segment files named after the first sequence
+ * number they may hold. A segment starts with a header (magic, version,
+ * epoch) followed by records:
+ *   int length, int crc32(payload), payload
+ *   payload = long sequence, long timestamp, byte type, sender, text
+ * where strings are an int byte count (-1 for null) and UTF-8 bytes, and text
+ * is the message as typed: the display line is rebuilt from the fields.
+ * A torn record at the end of the last segment (a crash mid-write) is cut off
+ * during recovery.
+ *
+ * The log is not the chat's archive (see HistoryStore): closed segments are
+ * deleted once the retention bound set with setRetention() has passed them.
+ */
+public class WriteAheadLog {
+    private static final int MAGIC = 0x4357414C; // "CWAL"
+    private static final int VERSION = 2; // 2: text without the timestamp and sender prefix
+    private static final String SUFFIX = ".wal";
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+    public static final long DEFAULT_SEGMENT_BYTES = 16L << 20;
+    private static final long SYNC_INTERVAL_MS = 100;
+
+    /**
+     * When appended records are forced to disk. Records always reach the
+     * operating system before delivery, so a process crash loses nothing;
+     * the policy decides what a power loss or OS crash can lose.
+     */
+    public enum SyncPolicy {
+        ALWAYS,   // fsync every commit before the messages it covers are acknowledged or delivered
+        INTERVAL, // fsync in the background every SYNC_INTERVAL_MS
+        NONE      // leave it to the operating system
+    }
+
+    private final File directory;
+    private final SyncPolicy syncPolicy;
+    private final long segmentBytes;
+    private String epoch;
+    private long lastSequence;
+    private long committedSequence; // Highest sequence number covered by a commit
+    private File currentSegment;
+    private FileOutputStream currentStream;
+    private DataOutputStream out;
+    private long currentSize;
+    private boolean dirty; // Written since the last fsync
+    private Thread syncThread;
+    private volatile LongSupplier retention; // First sequence number closed segments must be kept for
+    private volatile boolean open;
+    private IOException failure; // Set when a write could not be undone; the log then refuses writes
+    private final CRC32 crc;
+    private final ByteArrayOutputStream recordBuffer;
+    private final ByteArrayOutputStream batchBuffer;
+
+    public WriteAheadLog(File directory, SyncPolicy syncPolicy) {
+        this(directory, syncPolicy, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public WriteAheadLog(File directory, SyncPolicy syncPolicy, long segmentBytes) {
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+        this.segmentBytes = segmentBytes;
+        this.lastSequence = 0;
+        this.crc = new CRC32();
+        this.recordBuffer = new ByteArrayOutputStream(256);
+        this.batchBuffer = new ByteArrayOutputStream(16 * 1024);
+    }
+
+    /**
+     * Delete closed segments whose records all come before the sequence number the
+     * supplier gives, checked whenever a segment is closed. Without a retention
+     * bound every segment is kept.
+     */
+    public void setRetention(LongSupplier keepFrom) {
+        this.retention = keepFrom;
+    }
+
+    /**
+     * Recover the log, creating it with the given epoch if there is none, and
+     * get ready to append. Returns the number of records recovered.
+     */
+    public synchronized long open(String newEpoch) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+
+        long recovered = 0;
+        File[] segments = listSegments();
+        for (int i = 0; i < segments.length; i++) {
+            boolean last = i == segments.length - 1;
+            recovered += recoverSegment(segments[i], last);
+        }
+
+        if (epoch == null) {
+            epoch = newEpoch;
+        }
+        committedSequence = lastSequence;
+        File last = segments.length > 0 ? segments[segments.length - 1] : null;
+        if (last != null && last.length() > 0) {
+            openSegment(last, false);
+        } else {
+            openSegment(segmentFile(lastSequence + 1), true);
+        }
+
+        open = true;
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            syncThread = new Thread(this::syncPeriodically, "WAL-Sync");
+            syncThread.setDaemon(true);
+            syncThread.start();
+        }
+        return recovered;
+    }
+
+    /**
+     * Epoch the sequence numbers in this log belong to
+     */
+    public synchronized String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Highest sequence number logged so far, 0 if none
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Append a sequenced message. It is not durable until commit().
+     */
+    public synchronized void append(ChatMessage message) throws IOException {
+        append(Collections.singletonList(message));
+    }
+
+    /**
+     * Append a batch of sequenced messages, all or none: the batch is encoded
+     * first and written in one step, and a failed write is cut back off the
+     * segment. If that fails too the log is marked failed, so no later commit
+     * can make part of the batch durable. Not durable until commit().
+     */
+    public synchronized void append(List<ChatMessage> messages) throws IOException {
+        checkWritable();
+        long sequence = lastSequence;
+        batchBuffer.reset();
+        DataOutputStream batch = new DataOutputStream(batchBuffer);
+        for (ChatMessage message : messages) {
+            if (message.getSequence() <= sequence) {
+                throw new IllegalArgumentException("Sequence " + message.getSequence()
+                        + " is not after " + sequence);
+            }
+            recordBuffer.reset();
+            DataOutputStream payload = new DataOutputStream(recordBuffer);
+            payload.writeLong(message.getSequence());
+            payload.writeLong(message.getTimestamp());
+            payload.writeByte(message.getType().ordinal());
+            writeString(payload, message.getSender());
+            writeString(payload, message.getText());
+
+            crc.reset();
+            crc.update(recordBuffer.toByteArray());
+            batch.writeInt(recordBuffer.size());
+            batch.writeInt((int) crc.getValue());
+            recordBuffer.writeTo(batch);
+            sequence = message.getSequence();
+        }
+
+        // Everything before the batch goes out first, so a failure leaves exactly the batch to cut off
+        out.flush();
+        try {
+            batchBuffer.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            undoWrite(e);
+            throw e;
+        }
+        currentSize += batchBuffer.size();
+        lastSequence = sequence;
+        dirty = true;
+    }
+
+    /**
+     * Cut a failed write off the current segment and start a fresh buffer, or
+     * failing that refuse all further writes
+     */
+    private void undoWrite(IOException cause) {
+        try {
+            currentStream.getChannel().truncate(currentSize);
+            out = new DataOutputStream(new BufferedOutputStream(currentStream, 64 * 1024));
+        } catch (IOException e) {
+            failure = cause;
+            System.err.println("Write-ahead log failed, refusing further writes: " + cause.getMessage());
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed earlier: " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Make everything appended so far durable according to the sync policy,
+     * and start a new segment if the current one is full. Returns at once if an
+     * earlier commit already covered everything, so threads that append and
+     * then commit share one fsync when their commits overlap.
+     */
+    public synchronized void commit() throws IOException {
+        checkWritable();
+        if (committedSequence == lastSequence) {
+            return;
+        }
+        try {
+            out.flush();
+            if (syncPolicy == SyncPolicy.ALWAYS) {
+                sync();
+            }
+        } catch (IOException e) {
+            // Whether the appended records reached the disk is unknown, so they can't be taken back
+            failure = e;
+            throw e;
+        }
+        committedSequence = lastSequence;
+        if (currentSize >= segmentBytes) {
+            sync();
+            out.close();
+            openSegment(segmentFile(lastSequence + 1), true);
+            LongSupplier keepFrom = retention;
+            if (keepFrom != null) {
+                deleteSegmentsBefore(keepFrom.getAsLong());
+            }
+        }
+    }
+
+    /**
+     * Delete closed segments whose records all come before the given sequence number
+     */
+    private void deleteSegmentsBefore(long sequence) {
+        File[] segments = listSegments();
+        // The last segment is the current one; a segment ends where the next begins
+        for (int i = 0; i + 1 < segments.length && firstSequenceOf(segments[i + 1]) <= sequence; i++) {
+            if (!segments[i].delete()) {
+                System.err.println("Write-ahead log: could not delete " + segments[i].getName());
+            }
+        }
+    }
+
+    /**
+     * Read up to max committed messages with a sequence number after the given one, in order.
+     * The lock is held only to take the list of segments and the committed sequence
+     * number, so a long replay does not hold up appends and commits. Segments deleted
+     * meanwhile are passed over, as if they had been gone already.
+     */
+    public List<ChatMessage> readSince(long afterSequence, int max) throws IOException {
+        File[] segments;
+        long committedSequence;
+        synchronized (this) {
+            segments = listSegments();
+            committedSequence = this.committedSequence;
+        }
+
+        List<ChatMessage> messages = new ArrayList<>();
+        // Start at the last segment that begins at or before the first wanted sequence
+        int start = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (firstSequenceOf(segments[i]) <= afterSequence + 1) {
+                start = i;
+            }
+        }
+        for (int i = start; i < segments.length && messages.size() < max
+                && firstSequenceOf(segments[i]) <= committedSequence; i++) {
+            DataInputStream in;
+            try {
+                in = openRecords(segments[i]);
+            } catch (FileNotFoundException e) {
+                continue;
+            }
+            try {
+                ChatMessage message;
+                while (messages.size() < max && (message = readRecord(in)) != null
+                        && message.getSequence() <= committedSequence) {
+                    if (message.getSequence() > afterSequence) {
+                        messages.add(message);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Open a segment positioned at its first record
+     */
+    private DataInputStream openRecords(File segment) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        try {
+            readHeader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /**
+     * Flush, fsync and close the log
+     */
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        if (syncThread != null) {
+            syncThread.interrupt();
+        }
+        out.flush();
+        sync();
+        out.close();
+    }
+
+    /**
+     * Scan one segment, keeping the epoch and last sequence number. A damaged
+     * tail is cut off if this is the last segment; elsewhere it means data loss.
+     */
+    private long recoverSegment(File segment, boolean last) throws IOException {
+        // A segment begins after everything before it, even if older segments are deleted and it is empty
+        lastSequence = Math.max(lastSequence, firstSequenceOf(segment) - 1);
+        long records = 0;
+        long goodLength;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            String segmentEpoch;
+            try {
+                segmentEpoch = readHeader(in);
+            } catch (EOFException e) {
+                // Created but never written: recreated on open
+                segment.delete();
+                return 0;
+            }
+            checkEpoch(segment, segmentEpoch);
+            goodLength = headerLength(segmentEpoch);
+            ChatMessage message;
+            while ((message = readRecord(in)) != null) {
+                lastSequence = message.getSequence();
+                goodLength += 8 + payloadLength(message);
+                records++;
+            }
+        }
+
+        if (goodLength < segment.length()) {
+            if (!last) {
+                throw new IOException("Corrupt record in " + segment.getName() + " at offset " + goodLength);
+            }
+            System.err.println("Write-ahead log: discarding " + (segment.length() - goodLength)
+                    + " byte(s) of torn record at the end of " + segment.getName());
+            try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                file.setLength(goodLength);
+            }
+        }
+        return records;
+    }
+
+    private void checkEpoch(File segment, String segmentEpoch) throws IOException {
+        if (epoch == null) {
+            epoch = segmentEpoch;
+        } else if (!epoch.equals(segmentEpoch)) {
+            throw new IOException("Segment " + segment.getName() + " belongs to epoch " + segmentEpoch
+                    + ", not " + epoch);
+        }
+    }
+
+    private void openSegment(File file, boolean create) throws IOException {
+        currentSegment = file;
+        currentStream = new FileOutputStream(file, !create);
+        out = new DataOutputStream(new BufferedOutputStream(currentStream, 64 * 1024));
+        if (create) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(epoch);
+            out.flush();
+            currentStream.getFD().sync();
+            currentSize = headerLength(epoch);
+        } else {
+            currentSize = file.length();
+        }
+    }
+
+    private void sync() throws IOException {
+        if (dirty) {
+            FileChannel channel = currentStream.getChannel();
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    private void syncPeriodically() {
+        while (open) {
+            try {
+                Thread.sleep(SYNC_INTERVAL_MS);
+                synchronized (this) {
+                    if (open) {
+                        out.flush();
+                        sync();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Write-ahead log sync failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a write-ahead log segment");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported log version " + version);
+        }
+        return in.readUTF();
+    }
+
+    private static long headerLength(String epoch) {
+        return 4 + 4 + 2 + epoch.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Read the next record, or null at the end of the segment or at a torn or corrupt record
+     */
+    private ChatMessage readRecord(DataInputStream in) throws IOException {
+        byte[] bytes = readPayload(in);
+        if (bytes == null) {
+            return null;
+        }
+
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+        long sequence = payload.readLong();
+        long timestamp = payload.readLong();
+        ChatMessage.Type type = ChatMessage.Type.values()[payload.readByte()];
+        String sender = readString(payload);
+        String text = readString(payload);
+        ChatMessage message = new ChatMessage(timestamp, sender, text, type);
+        message.setSequence(sequence);
+        return message;
+    }
+
+    /**
+     * Read the next record's payload, checking its length and checksum.
+     * Returns null at the end of the segment or at a torn or corrupt record.
+     */
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        byte[] bytes;
+        int checksum;
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES) {
+                return null;
+            }
+            checksum = in.readInt();
+            bytes = new byte[length];
+            in.readFully(bytes);
+        } catch (EOFException e) {
+            return null;
+        }
+        return checksum(bytes) == checksum ? bytes : null;
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 check = new CRC32();
+        check.update(bytes);
+        return (int) check.getValue();
+    }
+
+    private static int payloadLength(ChatMessage message) {
+        return 8 + 8 + 1 + stringLength(message.getSender()) + stringLength(message.getText());
+    }
+
+    private static int stringLength(String s) {
+        return 4 + (s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Segments in sequence order
+     */
+    private File[] listSegments() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files); // Zero-padded names sort by first sequence number
+        return files;
+    }
+
+    private File segmentFile(long firstSequence) {
+        return new File(directory, String.format("%020d%s", firstSequence, SUFFIX));
+    }
+
+    private static long firstSequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+}
\ No newline at end of file
@@ -3,19 +3,21 @@ package Employee;
 import java.io.*;
 import java.util.ArrayList;
 import Login.LoginPage;
+import Util.IntObjectMap;
 
 public class EmployeeList extends ExceptionClass {
     /***** Stack to store Employee objects *****/
     public static ArrayList<Employee> employeeList = new ArrayList<>();
+    /***** same Employees by ID, kept in step with employeeList *****/
+    private static IntObjectMap<Employee> employeesByID = new IntObjectMap<>();
 
     /***** method to add an Employee *****/
     public void addEmployee(Employee e) {
         try {
+            if (employeesByID.containsKey(e.getID())) {
+                throw new ExceptionClass("Employee with same 'ID' already added");
+            }
             for (Employee ep : employeeList) {
-                if (e.getID() == ep.getID()) {
-                      throw new ExceptionClass("Employee with same 'ID' already added");
-                }
-
                 if (e.getPhoneNumber().equals(ep.getPhoneNumber())) {
                        throw new ExceptionClass("Employee with same 'phone number' already added");
                 }
@@ -25,6 +27,7 @@ public class EmployeeList extends ExceptionClass {
                 }
             }
             employeeList.add(e);
+            employeesByID.put(e.getID(), e);
         } catch (ExceptionClass exception) {
             exception.showMessage();
         }
@@ -34,6 +37,9 @@ public class EmployeeList extends ExceptionClass {
     /***** method to remove an Employee *****/
     public void removeEmployee(Employee e) {
         employeeList.remove(e);
+        if (employeesByID.get(e.getID()) == e) {
+            employeesByID.remove(e.getID());
+        }
         LoginPage.remove(e.getID());
     }
 
@@ -42,8 +48,14 @@ public class EmployeeList extends ExceptionClass {
     public void updateEmployee(Employee prevE, Employee newE) {
         try {
             int indOfPrevEp = employeeList.indexOf(prevE);
+            Employee sameID = employeesByID.get(newE.getID());
+            if (sameID != null && sameID != prevE) {
+                throw new ExceptionClass("Employee with same 'ID' already added");
+            }
             if (indOfPrevEp >= 0 && indOfPrevEp < employeeList.size()) {
                 employeeList.set(indOfPrevEp, newE);
+                employeesByID.remove(prevE.getID());
+                employeesByID.put(newE.getID(), newE);
             } else {
                 throw new ExceptionClass("Previous Employee Not Found");
             }
@@ -56,10 +68,9 @@ public class EmployeeList extends ExceptionClass {
     /***** searches for an Employee using ID *****/
     public Employee searchEmployeeByID(int ID) {
         try {
-            for (Employee ep : employeeList) {
-                if (ep.getID() == ID) {
-                    return ep;
-                }
+            Employee ep = employeesByID.get(ID);
+            if (ep != null) {
+                return ep;
             }
           throw new ExceptionClass("Employee Not Found");
         } catch (ExceptionClass exception) {
@@ -95,8 +106,13 @@ public class EmployeeList extends ExceptionClass {
                 if(info[0].compareTo("") == 0 || info[2].compareTo("") == 0) {
                     continue;
                 }
-                employeeList.add(new Employee(Integer.parseInt(info[0]), info[1], Integer.parseInt(info[2]),
-                        info[3], info[4], info[5], info[6]));
+                Employee ep = new Employee(Integer.parseInt(info[0]), info[1], Integer.parseInt(info[2]),
+                        info[3], info[4], info[5], info[6]);
+                employeeList.add(ep);
+                /**** a repeated ID keeps the first employee, as the old list search did ****/
+                if (!employeesByID.containsKey(ep.getID())) {
+                    employeesByID.put(ep.getID(), ep);
+                }
             }
             br.close();
         }
@@ -152,16 +152,34 @@ public class Order2 extends ExceptionClass {
                     BufferedReader b = new BufferedReader(new FileReader("Restaurant_Management_System/src/Order/files/menu.txt"));
                     FileWriter w2 = new FileWriter("Restaurant_Management_System/src/Order/files/latOrder.txt", true);
 
-                    while ((str = b.readLine()) != null) {
-                        if (str.startsWith(s1)) {
-                            flag = 1;
-                            w.write(str + "\t,");
-                            w.write(s2 + "\n");
-                            w2.write(str + "\t,");
-                            w2.write(s2 + "\n");
+                    /**** compare item IDs as numbers, so "10" no longer matches item 101 ****/
+                    int wanted;
+                    try {
+                        wanted = Integer.parseInt(s1.trim());
+                    } catch (NumberFormatException ex) {
+                        wanted = -1; // no menu line has this ID
+                    }
+                    String line = null;
+                    while (wanted >= 0 && (str = b.readLine()) != null) {
+                        try {
+                            if (Integer.parseInt(str.split(" , ")[0].trim()) == wanted) {
+                                line = str; // a repeated ID keeps the first line
+                                break;
+                            }
+                        } catch (NumberFormatException ex) {
+                            // blank or malformed menu line
                         }
                     }
 
+                    str = line;
+                    if (str != null) {
+                        flag = 1;
+                        w.write(str + "\t,");
+                        w.write(s2 + "\n");
+                        w2.write(str + "\t,");
+                        w2.write(s2 + "\n");
+                    }
+
                     w.close();
                     b.close();
                     w2.close();